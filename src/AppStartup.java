@@ -0,0 +1,183 @@
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.filechooser.FileSystemView;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.lang.management.ManagementFactory;
+
+//startup timing and background prewarm of the slow dialogs/codecs
+//with -Ddrawingapp.startupReport=<file> the timestamps are written to that file as one line, e.g.
+//"jvmStart=1760000000000 firstFrame=412 interactive=530 firstStroke=2210 prewarm=380"
+//(ms after jvm start, prewarm = ms the prewarm thread took, -1 = not reached yet); rewritten at every mark
+public final class AppStartup {
+    private static final String REPORT_FILE = System.getProperty("drawingapp.startupReport");
+
+    //startup timestamps (epoch millis, 0 = not reached yet)
+    private static final long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private static volatile long firstFrame = 0;
+    private static volatile long interactive = 0;
+    private static volatile long firstStroke = 0;
+    private static volatile long prewarmMillis = -1;
+
+    //only the app records timestamps (harnesses like InputReplay build a DrawingPanel directly)
+    private static volatile boolean tracking = false;
+
+    //shared dialogs (created on the EDT only)
+    private static JFileChooser fileChooser;
+    private static JColorChooser colorChooser;
+
+    private static boolean prewarmStarted = false;
+
+    private AppStartup() {
+    }
+
+    //call from main before the frame is created
+    public static void startTracking() {
+        tracking = true;
+    }
+
+    //timestamps
+    public static void markFirstFrame() {
+        if (tracking && firstFrame == 0) {
+            firstFrame = System.currentTimeMillis();
+            writeReport();
+        }
+    }
+
+    public static void markInteractive() {
+        if (tracking && interactive == 0) {
+            interactive = System.currentTimeMillis();
+            writeReport();
+        }
+    }
+
+    public static void markFirstStroke() {
+        if (tracking && firstStroke == 0) {
+            firstStroke = System.currentTimeMillis();
+            writeReport();
+        }
+    }
+
+    public static long getJvmStart() {
+        return jvmStart;
+    }
+
+    public static long getFirstFrame() {
+        return firstFrame;
+    }
+
+    public static long getInteractive() {
+        return interactive;
+    }
+
+    public static long getFirstStroke() {
+        return firstStroke;
+    }
+
+    //the report line (see class comment)
+    public static String formatReport() {
+        return "jvmStart=" + jvmStart
+                + " firstFrame=" + sinceJvmStart(firstFrame)
+                + " interactive=" + sinceJvmStart(interactive)
+                + " firstStroke=" + sinceJvmStart(firstStroke)
+                + " prewarm=" + prewarmMillis;
+    }
+
+    private static long sinceJvmStart(long time) {
+        return time == 0 ? -1 : time - jvmStart;
+    }
+
+    //marks come from the EDT and the prewarm thread
+    private static synchronized void writeReport() {
+        if (REPORT_FILE == null) {
+            return;
+        }
+        try {
+            Files.write(new File(REPORT_FILE).toPath(), (formatReport() + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //load the codecs and file system classes on a background thread, then build the dialogs on the EDT once idle
+    public static synchronized void prewarm() {
+        if (prewarmStarted) {
+            return;
+        }
+        prewarmStarted = true;
+
+        Thread prewarmThread = new Thread(() -> {
+            long start = System.currentTimeMillis();
+
+            //png writer and reader (first ImageIO call scans the whole plugin registry)
+            try {
+                BufferedImage pixel = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ImageIO.write(pixel, "PNG", out);
+                ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            //file system view (slow to resolve home/roots on some platforms)
+            FileSystemView fileSystemView = FileSystemView.getFileSystemView();
+            fileSystemView.getDefaultDirectory();
+            fileSystemView.getHomeDirectory();
+            fileSystemView.getRoots();
+
+            //load (not create) the dialog classes and their ui delegates
+            loadClass("javax.swing.JFileChooser");
+            loadClass("javax.swing.JColorChooser");
+            loadClass(UIManager.getString("FileChooserUI"));
+            loadClass(UIManager.getString("ColorChooserUI"));
+
+            prewarmMillis = System.currentTimeMillis() - start;
+            if (tracking) {
+                writeReport();
+            }
+
+            //dialog instances must be created on the EDT
+            SwingUtilities.invokeLater(() -> {
+                getFileChooser();
+                getColorChooser();
+            });
+        }, "startup-prewarm");
+        prewarmThread.setDaemon(true);
+        prewarmThread.setPriority(Thread.MIN_PRIORITY);
+        prewarmThread.start();
+    }
+
+    //shared png file chooser (reused between save and open)
+    public static JFileChooser getFileChooser() {
+        if (fileChooser == null) {
+            fileChooser = new JFileChooser();
+            fileChooser.setFileFilter(new FileNameExtensionFilter("PNG", "png"));
+        }
+        return fileChooser;
+    }
+
+    //shared color chooser (use with JColorChooser.createDialog)
+    public static JColorChooser getColorChooser() {
+        if (colorChooser == null) {
+            colorChooser = new JColorChooser();
+        }
+        return colorChooser;
+    }
+
+    private static void loadClass(String className) {
+        if (className == null) {
+            return;
+        }
+        try {
+            Class.forName(className, true, AppStartup.class.getClassLoader());
+        } catch (ClassNotFoundException | LinkageError e) {
+            //not fatal, the class is loaded on first use instead
+        }
+    }
+}
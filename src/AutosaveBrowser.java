@@ -0,0 +1,171 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//list of autosaved versions (newest first) with thumbnails, used in the "Restore Autosave" dialog
+//shows the current document's versions; other autosave folders (e.g. unsaved drawings from a crashed session) can be picked
+//thumbnails are loaded in the background only for the rows that are actually shown
+public class AutosaveBrowser extends JPanel {
+    private static final int ROW_MARGIN = 8;
+    private static final int ROW_WIDTH = 380;
+    private static final int ICON_CACHE_SIZE = 64;
+
+    private AutosaveStore store;
+    private final Set<AutosaveStore> shownStores = new HashSet<>(); //thumbnail caches to drop on dispose
+    private final JComboBox<File> documentCombo;
+    private final JLabel countLabel = new JLabel();
+    private final JList<Long> versionList = new JList<>();
+
+    //EDT only, for the shown store (least recently used evicted, like the store's thumbnail cache)
+    private final Map<Long, ImageIcon> icons = new LinkedHashMap<Long, ImageIcon>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ImageIcon> eldest) {
+            return size() > ICON_CACHE_SIZE;
+        }
+    };
+    private final Set<Long> loading = new HashSet<>();
+    private final Set<Long> failed = new HashSet<>(); //not retried while the store is shown
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "autosave-thumbnails");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public AutosaveBrowser(AutosaveStore current) {
+        super(new BorderLayout());
+
+        //current document first, then the other autosave folders
+        Vector<File> directories = new Vector<>();
+        directories.add(current.getDirectory());
+        for (File directory : AutosaveStore.listStores(AutosaveStore.getUnsavedRoot())) {
+            if (!directory.equals(current.getDirectory())) {
+                directories.add(directory);
+            }
+        }
+        documentCombo = new JComboBox<>(directories);
+        documentCombo.setRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                String name = ((File) value).getName();
+                if (value.equals(current.getDirectory())) {
+                    name += " (this document)";
+                }
+                return super.getListCellRendererComponent(list, name, index, isSelected, cellHasFocus);
+            }
+        });
+        documentCombo.addActionListener(e -> showDirectory((File) documentCombo.getSelectedItem()));
+
+        versionList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        //fixed cell size, otherwise the list measures (and so loads) every row to lay itself out
+        versionList.setFixedCellHeight(AutosaveStore.THUMBNAIL_SIZE + ROW_MARGIN);
+        versionList.setFixedCellWidth(ROW_WIDTH);
+        versionList.setCellRenderer(new VersionRenderer());
+
+        JPanel header = new JPanel(new BorderLayout());
+        header.add(documentCombo, BorderLayout.NORTH);
+        header.add(countLabel, BorderLayout.SOUTH);
+
+        JScrollPane scrollPane = new JScrollPane(versionList);
+        scrollPane.setPreferredSize(new Dimension(420, 520));
+        add(header, BorderLayout.NORTH);
+        add(scrollPane, BorderLayout.CENTER);
+
+        showStore(current);
+    }
+
+    //the store the selected version belongs to
+    public AutosaveStore getSelectedStore() {
+        return store;
+    }
+
+    //null when nothing is selected
+    public Long getSelectedVersion() {
+        return versionList.getSelectedValue();
+    }
+
+    public void dispose() {
+        loader.shutdownNow();
+        for (AutosaveStore shown : shownStores) {
+            shown.clearThumbnails();
+        }
+        icons.clear();
+    }
+
+    private void showDirectory(File directory) {
+        try {
+            showStore(AutosaveStore.forDirectory(directory));
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Could not read autosaves: " + e.getMessage(), "Restore Autosave", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void showStore(AutosaveStore newStore) {
+        store = newStore;
+        shownStores.add(store);
+        icons.clear();
+        loading.clear();
+        failed.clear();
+
+        List<Long> versions = store.getVersions();
+        Collections.reverse(versions);
+        versionList.setListData(versions.toArray(new Long[0]));
+        if (!versions.isEmpty()) {
+            versionList.setSelectedIndex(0);
+        }
+        countLabel.setText(versions.size() + " versions in " + store.getDirectory());
+    }
+
+    private ImageIcon getThumbnailIcon(long time) {
+        ImageIcon icon = icons.get(time);
+        if (icon == null && !failed.contains(time) && loading.add(time)) {
+            AutosaveStore source = store;
+            loader.execute(() -> {
+                try {
+                    BufferedImage thumbnail = source.getThumbnail(time);
+                    SwingUtilities.invokeLater(() -> {
+                        //ignore thumbnails of a store that is no longer shown
+                        if (source == store) {
+                            loading.remove(time);
+                            icons.put(time, new ImageIcon(thumbnail));
+                            versionList.repaint();
+                        }
+                    });
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    SwingUtilities.invokeLater(() -> {
+                        if (source == store) {
+                            loading.remove(time);
+                            failed.add(time);
+                            versionList.repaint();
+                        }
+                    });
+                }
+            });
+        }
+        return icon;
+    }
+
+    private class VersionRenderer extends DefaultListCellRenderer {
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+            long time = (Long) value;
+            super.getListCellRendererComponent(list, AutosaveStore.formatVersion(time), index, isSelected, cellHasFocus);
+            ImageIcon icon = getThumbnailIcon(time);
+            setIcon(icon);
+            if (failed.contains(time)) {
+                setText(getText() + " (preview unavailable)");
+            } else if (icon == null) {
+                setText(getText() + " (loading...)");
+            }
+            setIconTextGap(12);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,610 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+//rotating autosave versions in one append-only pack file
+//tiles are stored once per content hash (shared by every version that uses them), versions only list tile hashes
+//(a full list every KEYFRAME_INTERVAL versions, otherwise just the tiles that changed since the previous version)
+public class AutosaveStore {
+    private static final String PACK_NAME = "autosave.pack";
+    private static final int MAGIC = 0x44524E41; //"DRNA"
+    private static final int HASH_LENGTH = 20;
+    private static final int KEYFRAME_INTERVAL = 60;
+    public static final int THUMBNAIL_SIZE = 160; //longest side
+    private static final int THUMBNAIL_CACHE_SIZE = 64;
+
+    //record types
+    private static final int TILE = 1;
+    private static final int VERSION = 2;
+    private static final int DROP = 3;
+
+    //autosave writes happen off the EDT, one at a time
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "autosave-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //one store per folder (the document and the restore browser share the same index)
+    private static final Map<File, AutosaveStore> stores = new HashMap<>();
+
+    private final File packFile;
+    private final int maxVersions;
+
+    //index built from the pack
+    private final Map<String, Long> tileOffsets = new HashMap<>(); //hash -> offset of the tile record
+    private final List<VersionRecord> records = new ArrayList<>(); //every version record, oldest first
+    private final List<VersionRecord> liveVersions = new ArrayList<>(); //not dropped, oldest first
+    private int deltasSinceKeyframe = 0;
+    private boolean compactionFailed = false;
+
+    //latest version, to skip unchanged saves and to write deltas (hashes only -- holding the tiles would keep a
+    //closed or evicted document's pixels on the heap)
+    private String[] lastHashes;
+    private int lastWidth, lastHeight;
+
+    //thumbnails by version time (least recently used evicted)
+    private final Map<Long, BufferedImage> thumbnails = new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+            return size() > THUMBNAIL_CACHE_SIZE;
+        }
+    };
+
+    public AutosaveStore(File directory, int maxVersions) throws IOException {
+        if (!directory.exists()) {
+            directory.mkdirs(); //create the folder if it doesn't exist
+        }
+        this.packFile = new File(directory, PACK_NAME);
+        this.maxVersions = Math.max(1, maxVersions);
+        open();
+    }
+
+    public static synchronized AutosaveStore forDirectory(File directory) throws IOException {
+        File key = directory.getAbsoluteFile();
+        AutosaveStore store = stores.get(key);
+        if (store == null) {
+            store = new AutosaveStore(key, defaultMaxVersions());
+            stores.put(key, store);
+        }
+        return store;
+    }
+
+    //forget the store (document closed) -- it is opened again from disk if needed
+    //queued behind the store's pending saves, so a reopened store never reads a pack that is still being written
+    public static void release(AutosaveStore store) {
+        writer.execute(() -> {
+            synchronized (AutosaveStore.class) {
+                stores.remove(store.getDirectory().getAbsoluteFile(), store);
+            }
+            store.clearThumbnails();
+        });
+    }
+
+    //delete a store's folder (unsaved document saved or closed), after its pending saves
+    public static void delete(File directory) {
+        File key = directory.getAbsoluteFile();
+        writer.execute(() -> {
+            synchronized (AutosaveStore.class) {
+                AutosaveStore store = stores.remove(key);
+                if (store != null) {
+                    store.clearThumbnails();
+                }
+            }
+            deleteFolder(key);
+        });
+    }
+
+    //keep only the newest -Ddrawingapp.autosaveDocuments folders of unsaved documents (default 10), so crash
+    //recovery copies from earlier sessions don't pile up
+    public static void pruneUnsaved() {
+        int keep = Integer.getInteger("drawingapp.autosaveDocuments", 10);
+        writer.execute(() -> {
+            List<File> directories = listStores(getUnsavedRoot());
+            for (int i = keep; i < directories.size(); i++) {
+                File directory = directories.get(i);
+                synchronized (AutosaveStore.class) {
+                    if (stores.containsKey(directory)) {
+                        continue; //open in this session
+                    }
+                }
+                System.out.println("Pruning old autosave folder: " + directory); //debug
+                deleteFolder(directory);
+            }
+        });
+    }
+
+    //wait for queued saves and deletes (before the app exits, the writer is a daemon thread)
+    public static void awaitWrites() {
+        try {
+            writer.submit(() -> { }).get(5, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void deleteFolder(File directory) {
+        new File(directory, PACK_NAME).delete();
+        new File(directory, PACK_NAME + ".tmp").delete();
+        directory.delete();
+    }
+
+    //unsaved documents each get a folder in here
+    public static File getUnsavedRoot() {
+        return new File(System.getProperty("user.home") + "/Documents", "autosave");
+    }
+
+    //folders under root that hold autosaved versions, newest first (e.g. documents from earlier sessions)
+    public static List<File> listStores(File root) {
+        List<File> directories = new ArrayList<>();
+        File[] children = root.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                File pack = new File(child, PACK_NAME);
+                if (child.isDirectory() && pack.length() > 4) {
+                    directories.add(child.getAbsoluteFile());
+                }
+            }
+        }
+        directories.sort((a, b) -> Long.compare(new File(b, PACK_NAME).lastModified(), new File(a, PACK_NAME).lastModified()));
+        return directories;
+    }
+
+    //-Ddrawingapp.autosaveVersions=<n>, default a day of 10 second autosaves
+    public static int defaultMaxVersions() {
+        return Integer.getInteger("drawingapp.autosaveVersions", 8640);
+    }
+
+    //queue a save of the snapshot (safe to call from the EDT, snapshots are immutable)
+    public void saveAsync(TileCanvas.Snapshot snapshot) {
+        writer.execute(() -> {
+            try {
+                if (save(snapshot, System.currentTimeMillis())) {
+                    System.out.println("Auto-save version stored: " + packFile.getAbsolutePath()); //debug
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    //returns false when nothing changed since the last version
+    public synchronized boolean save(TileCanvas.Snapshot snapshot, long time) throws IOException {
+        int count = snapshot.getTileCount();
+        boolean sameSize = lastHashes != null && snapshot.getWidth() == lastWidth && snapshot.getHeight() == lastHeight;
+
+        //tile hashes are memoised, so unchanged tiles cost a lookup
+        String[] hashes = new String[count];
+        Tile[] tiles = new Tile[count];
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            tiles[i] = snapshot.getTile(i);
+            hashes[i] = toHex(tiles[i].getContentHash());
+            if (!sameSize || !hashes[i].equals(lastHashes[i])) {
+                changed.add(i);
+            }
+        }
+        if (sameSize && changed.isEmpty()) {
+            return false;
+        }
+
+        try (RandomAccessFile pack = new RandomAccessFile(packFile, "rw")) {
+            pack.seek(pack.length());
+
+            //tiles not stored yet (identical content is written once)
+            for (int i : changed) {
+                if (!tileOffsets.containsKey(hashes[i])) {
+                    tileOffsets.put(hashes[i], pack.getFilePointer());
+                    writeTile(pack, tiles[i]);
+                }
+            }
+
+            //full list after resizes and every KEYFRAME_INTERVAL versions, delta otherwise
+            boolean full = !sameSize || deltasSinceKeyframe >= KEYFRAME_INTERVAL;
+            VersionRecord record = new VersionRecord();
+            record.time = time;
+            record.offset = pack.getFilePointer();
+            record.full = full;
+            record.index = records.size();
+            writeVersion(pack, record, snapshot.getWidth(), snapshot.getHeight(), hashes, full ? null : changed);
+            records.add(record);
+            liveVersions.add(record);
+            deltasSinceKeyframe = full ? 0 : deltasSinceKeyframe + 1;
+        }
+
+        lastHashes = hashes;
+        lastWidth = snapshot.getWidth();
+        lastHeight = snapshot.getHeight();
+
+        rotate();
+        return true;
+    }
+
+    //drop versions over the limit, rewrite the pack once most of it is dropped
+    private void rotate() throws IOException {
+        if (liveVersions.size() <= maxVersions) {
+            return;
+        }
+        try (RandomAccessFile pack = new RandomAccessFile(packFile, "rw")) {
+            pack.seek(pack.length());
+            while (liveVersions.size() > maxVersions) {
+                VersionRecord dropped = liveVersions.remove(0);
+                pack.writeByte(DROP);
+                pack.writeLong(dropped.time);
+            }
+        }
+        if (records.size() > 2 * liveVersions.size() && !compactionFailed) {
+            try {
+                compact();
+            } catch (IOException e) {
+                //the old pack is still intact (dropped versions just stay on disk), don't retry every save
+                e.printStackTrace();
+                compactionFailed = true;
+            }
+        }
+    }
+
+    //rewrite the pack with only the live versions and the tiles they use
+    private void compact() throws IOException {
+        File tempFile = new File(packFile.getParentFile(), PACK_NAME + ".tmp");
+        Map<String, Long> newTileOffsets = new HashMap<>();
+        List<VersionRecord> newRecords = new ArrayList<>();
+        String[] previous = null;
+        int deltas = 0;
+
+        try (RandomAccessFile source = new RandomAccessFile(packFile, "r");
+             RandomAccessFile target = new RandomAccessFile(tempFile, "rw")) {
+            target.setLength(0);
+            target.writeInt(MAGIC);
+
+            for (VersionRecord version : liveVersions) {
+                VersionData data = readVersionData(source, version);
+
+                List<Integer> changed = new ArrayList<>();
+                for (int i = 0; i < data.hashes.length; i++) {
+                    String hash = data.hashes[i];
+                    if (!newTileOffsets.containsKey(hash)) {
+                        newTileOffsets.put(hash, target.getFilePointer());
+                        copyTileRecord(source, tileOffsets.get(hash), target);
+                    }
+                    if (previous == null || previous.length != data.hashes.length || !hash.equals(previous[i])) {
+                        changed.add(i);
+                    }
+                }
+
+                boolean full = previous == null || previous.length != data.hashes.length || deltas >= KEYFRAME_INTERVAL;
+                VersionRecord record = new VersionRecord();
+                record.time = version.time;
+                record.offset = target.getFilePointer();
+                record.full = full;
+                record.index = newRecords.size();
+                writeVersion(target, record, data.width, data.height, data.hashes, full ? null : changed);
+                newRecords.add(record);
+
+                deltas = full ? 0 : deltas + 1;
+                previous = data.hashes;
+            }
+
+            //on disk before it replaces the old pack
+            target.getFD().sync();
+        }
+
+        //swap in one step -- if the move fails the old pack is left untouched
+        try {
+            Files.move(tempFile.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        tileOffsets.clear();
+        tileOffsets.putAll(newTileOffsets);
+        records.clear();
+        records.addAll(newRecords);
+        liveVersions.clear();
+        liveVersions.addAll(newRecords);
+        deltasSinceKeyframe = deltas;
+    }
+
+    //version times, oldest first
+    public synchronized List<Long> getVersions() {
+        List<Long> times = new ArrayList<>();
+        for (VersionRecord version : liveVersions) {
+            times.add(version.time);
+        }
+        return times;
+    }
+
+    //rebuild the canvas of a version (tiles with the same hash become the same shared tile)
+    public synchronized TileCanvas.Snapshot loadVersion(long time) throws IOException {
+        VersionRecord version = findVersion(time);
+        try (RandomAccessFile pack = new RandomAccessFile(packFile, "r")) {
+            VersionData data = readVersionData(pack, version);
+            Map<String, Tile> loaded = new HashMap<>();
+            Tile[] tiles = new Tile[data.hashes.length];
+            for (int i = 0; i < tiles.length; i++) {
+                Tile tile = loaded.get(data.hashes[i]);
+                if (tile == null) {
+                    tile = readTile(pack, tileOffsets.get(data.hashes[i]));
+                    loaded.put(data.hashes[i], tile);
+                }
+                tiles[i] = tile;
+            }
+            return new TileCanvas.Snapshot(data.width, data.height, tiles);
+        }
+    }
+
+    //small preview of a version (cached)
+    public BufferedImage getThumbnail(long time) throws IOException {
+        synchronized (thumbnails) {
+            BufferedImage cached = thumbnails.get(time);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        TileCanvas.Snapshot snapshot = loadVersion(time);
+        double scale = Math.min(1.0, (double) THUMBNAIL_SIZE / Math.max(snapshot.getWidth(), snapshot.getHeight()));
+        int width = Math.max(1, (int) (snapshot.getWidth() * scale));
+        int height = Math.max(1, (int) (snapshot.getHeight() * scale));
+
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = thumbnail.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.scale(scale, scale);
+        snapshot.paint(g, new TileRenderer());
+        g.dispose();
+
+        synchronized (thumbnails) {
+            thumbnails.put(time, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    public void clearThumbnails() {
+        synchronized (thumbnails) {
+            thumbnails.clear();
+        }
+    }
+
+    public static String formatVersion(long time) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(time));
+    }
+
+    public File getPackFile() {
+        return packFile;
+    }
+
+    public File getDirectory() {
+        return packFile.getParentFile();
+    }
+
+    //scan the pack and rebuild the index (a torn record at the end is cut off)
+    private void open() throws IOException {
+        if (!packFile.exists() || packFile.length() < 4) {
+            try (RandomAccessFile pack = new RandomAccessFile(packFile, "rw")) {
+                pack.setLength(0);
+                pack.writeInt(MAGIC);
+            }
+            return;
+        }
+
+        Set<Long> dropped = new HashSet<>();
+        try (RandomAccessFile pack = new RandomAccessFile(packFile, "rw")) {
+            if (pack.readInt() != MAGIC) {
+                throw new IOException("Not an autosave pack: " + packFile);
+            }
+
+            long goodLength = pack.getFilePointer();
+            try {
+                while (pack.getFilePointer() < pack.length()) {
+                    long offset = pack.getFilePointer();
+                    int type = pack.readUnsignedByte();
+                    if (type == TILE) {
+                        byte[] hash = new byte[HASH_LENGTH];
+                        pack.readFully(hash);
+                        int length = pack.readInt();
+                        skipFully(pack, length);
+                        tileOffsets.put(toHex(hash), offset);
+                    } else if (type == VERSION) {
+                        VersionRecord record = new VersionRecord();
+                        record.offset = offset;
+                        record.time = pack.readLong();
+                        record.full = pack.readBoolean();
+                        record.index = records.size();
+                        skipFully(pack, pack.readInt());
+                        records.add(record);
+                    } else if (type == DROP) {
+                        dropped.add(pack.readLong());
+                    } else {
+                        throw new EOFException("Unknown record type " + type);
+                    }
+                    goodLength = pack.getFilePointer();
+                }
+            } catch (EOFException e) {
+                //interrupted write -- keep everything before it
+                System.out.println("Truncating damaged autosave pack at " + goodLength); //debug
+                pack.setLength(goodLength);
+            }
+
+            for (VersionRecord record : records) {
+                if (!dropped.contains(record.time)) {
+                    liveVersions.add(record);
+                }
+            }
+
+            //continue deltas from the latest version
+            if (!records.isEmpty()) {
+                VersionRecord latest = records.get(records.size() - 1);
+                VersionData data = readVersionData(pack, latest);
+                lastHashes = data.hashes;
+                lastWidth = data.width;
+                lastHeight = data.height;
+                for (int i = records.size() - 1; i >= 0 && !records.get(i).full; i--) {
+                    deltasSinceKeyframe++;
+                }
+            }
+        }
+    }
+
+    private VersionRecord findVersion(long time) throws IOException {
+        for (VersionRecord version : liveVersions) {
+            if (version.time == time) {
+                return version;
+            }
+        }
+        throw new IOException("No autosave version " + formatVersion(time));
+    }
+
+    //full hash list of a version: start at the keyframe before it and apply the deltas
+    private VersionData readVersionData(RandomAccessFile pack, VersionRecord version) throws IOException {
+        int index = version.index;
+        int keyframe = index;
+        while (!records.get(keyframe).full) {
+            keyframe--;
+        }
+
+        VersionData data = null;
+        for (int i = keyframe; i <= index; i++) {
+            data = readVersionBody(pack, records.get(i), data);
+        }
+        return data;
+    }
+
+    private VersionData readVersionBody(RandomAccessFile pack, VersionRecord record, VersionData previous) throws IOException {
+        pack.seek(record.offset + 1 + 8 + 1); //type, time, full flag
+        byte[] body = new byte[pack.readInt()];
+        pack.readFully(body);
+
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(body)))) {
+            VersionData data = new VersionData();
+            data.width = in.readInt();
+            data.height = in.readInt();
+            int count = in.readInt();
+            if (record.full) {
+                data.hashes = new String[count];
+                for (int i = 0; i < count; i++) {
+                    data.hashes[i] = readHash(in);
+                }
+            } else {
+                data.hashes = previous.hashes.clone();
+                int changed = in.readInt();
+                for (int i = 0; i < changed; i++) {
+                    int index = in.readInt();
+                    data.hashes[index] = readHash(in);
+                }
+            }
+            return data;
+        }
+    }
+
+    //changed == null writes the full hash list
+    private static void writeVersion(RandomAccessFile pack, VersionRecord record, int width, int height,
+                                     String[] hashes, List<Integer> changed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(hashes.length);
+            if (changed == null) {
+                for (String hash : hashes) {
+                    out.write(fromHex(hash));
+                }
+            } else {
+                out.writeInt(changed.size());
+                for (int index : changed) {
+                    out.writeInt(index);
+                    out.write(fromHex(hashes[index]));
+                }
+            }
+        }
+
+        pack.writeByte(VERSION);
+        pack.writeLong(record.time);
+        pack.writeBoolean(record.full);
+        pack.writeInt(bytes.size());
+        pack.write(bytes.toByteArray());
+    }
+
+    private static void writeTile(RandomAccessFile pack, Tile tile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            tile.write(out);
+        }
+        pack.writeByte(TILE);
+        pack.write(tile.getContentHash());
+        pack.writeInt(bytes.size());
+        pack.write(bytes.toByteArray());
+    }
+
+    private static Tile readTile(RandomAccessFile pack, long offset) throws IOException {
+        pack.seek(offset + 1 + HASH_LENGTH);
+        byte[] body = new byte[pack.readInt()];
+        pack.readFully(body);
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(body)))) {
+            return Tile.read(in);
+        }
+    }
+
+    private static void copyTileRecord(RandomAccessFile source, long offset, RandomAccessFile target) throws IOException {
+        source.seek(offset + 1 + HASH_LENGTH);
+        int length = source.readInt();
+        byte[] record = new byte[1 + HASH_LENGTH + 4 + length];
+        source.seek(offset);
+        source.readFully(record);
+        target.write(record);
+    }
+
+    private static void skipFully(RandomAccessFile pack, int length) throws IOException {
+        if (length < 0 || pack.getFilePointer() + length > pack.length()) {
+            throw new EOFException();
+        }
+        pack.seek(pack.getFilePointer() + length);
+    }
+
+    private static String readHash(DataInput in) throws IOException {
+        byte[] hash = new byte[HASH_LENGTH];
+        in.readFully(hash);
+        return toHex(hash);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static class VersionRecord {
+        long time;
+        long offset;
+        boolean full;
+        int index; //position in records
+    }
+
+    private static class VersionData {
+        int width, height;
+        String[] hashes;
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+//canvas state and undo/redo snapshots of one document (all immutable, safe to read off the EDT)
+public class DocumentHistory {
+    private static final int MAGIC = 0x44524E48; //"DRNH"
+
+    private final TileCanvas.Snapshot current;
+    private final List<TileCanvas.Snapshot> undo;
+    private final List<TileCanvas.Snapshot> redo;
+
+    public DocumentHistory(TileCanvas.Snapshot current, List<TileCanvas.Snapshot> undo, List<TileCanvas.Snapshot> redo) {
+        this.current = current;
+        this.undo = undo;
+        this.redo = redo;
+    }
+
+    public TileCanvas.Snapshot getCurrent() {
+        return current;
+    }
+
+    //oldest first
+    public List<TileCanvas.Snapshot> getUndo() {
+        return undo;
+    }
+
+    public List<TileCanvas.Snapshot> getRedo() {
+        return redo;
+    }
+
+    //heap used by all snapshots (shared tiles counted once)
+    public long getByteSize() {
+        Map<Tile, Boolean> seen = new IdentityHashMap<>();
+        long total = current.getByteSize(seen);
+        for (TileCanvas.Snapshot snapshot : undo) {
+            total += snapshot.getByteSize(seen);
+        }
+        for (TileCanvas.Snapshot snapshot : redo) {
+            total += snapshot.getByteSize(seen);
+        }
+        return total;
+    }
+
+    //deflate everything into one block (shared tiles are written once)
+    public Compressed compress() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(bytes)))) {
+            //tile table
+            Map<Tile, Integer> tileIds = new IdentityHashMap<>();
+            List<Tile> tiles = new ArrayList<>();
+            collectTiles(current, tileIds, tiles);
+            for (TileCanvas.Snapshot snapshot : undo) {
+                collectTiles(snapshot, tileIds, tiles);
+            }
+            for (TileCanvas.Snapshot snapshot : redo) {
+                collectTiles(snapshot, tileIds, tiles);
+            }
+
+            out.writeInt(MAGIC);
+            out.writeInt(tiles.size());
+            for (Tile tile : tiles) {
+                tile.write(out);
+            }
+
+            //snapshots as tile ids
+            writeSnapshot(out, current, tileIds);
+            out.writeInt(undo.size());
+            for (TileCanvas.Snapshot snapshot : undo) {
+                writeSnapshot(out, snapshot, tileIds);
+            }
+            out.writeInt(redo.size());
+            for (TileCanvas.Snapshot snapshot : redo) {
+                writeSnapshot(out, snapshot, tileIds);
+            }
+        }
+        return new Compressed(bytes.toByteArray());
+    }
+
+    private static void collectTiles(TileCanvas.Snapshot snapshot, Map<Tile, Integer> tileIds, List<Tile> tiles) {
+        for (int i = 0; i < snapshot.getTileCount(); i++) {
+            Tile tile = snapshot.getTile(i);
+            if (!tileIds.containsKey(tile)) {
+                tileIds.put(tile, tiles.size());
+                tiles.add(tile);
+            }
+        }
+    }
+
+    private static void writeSnapshot(DataOutputStream out, TileCanvas.Snapshot snapshot, Map<Tile, Integer> tileIds) throws IOException {
+        out.writeInt(snapshot.getWidth());
+        out.writeInt(snapshot.getHeight());
+        out.writeInt(snapshot.getTileCount());
+        for (int i = 0; i < snapshot.getTileCount(); i++) {
+            out.writeInt(tileIds.get(snapshot.getTile(i)));
+        }
+    }
+
+    private static DocumentHistory read(InputStream source) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(source)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Corrupt document history");
+            }
+            Tile[] tiles = new Tile[in.readInt()];
+            for (int i = 0; i < tiles.length; i++) {
+                tiles[i] = Tile.read(in);
+            }
+
+            TileCanvas.Snapshot current = readSnapshot(in, tiles);
+            List<TileCanvas.Snapshot> undo = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                undo.add(readSnapshot(in, tiles));
+            }
+            List<TileCanvas.Snapshot> redo = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                redo.add(readSnapshot(in, tiles));
+            }
+            return new DocumentHistory(current, undo, redo);
+        }
+    }
+
+    private static TileCanvas.Snapshot readSnapshot(DataInputStream in, Tile[] tiles) throws IOException {
+        int width = in.readInt();
+        int height = in.readInt();
+        Tile[] snapshotTiles = new Tile[in.readInt()];
+        for (int i = 0; i < snapshotTiles.length; i++) {
+            snapshotTiles[i] = tiles[in.readInt()];
+        }
+        return new TileCanvas.Snapshot(width, height, snapshotTiles);
+    }
+
+    //deflated history, kept in memory or spilled to a temp file
+    public static class Compressed {
+        //spill files not discarded yet, deleted by one shutdown hook (deleteOnExit would remember every
+        //spill file ever written until exit)
+        private static final Set<File> liveSpillFiles = new HashSet<>();
+        private static boolean shutdownHookAdded = false;
+
+        private byte[] data;
+        private File spillFile;
+        private final int length;
+
+        private Compressed(byte[] data) {
+            this.data = data;
+            this.length = data.length;
+        }
+
+        //move the bytes to disk (no-op if already spilled)
+        public synchronized void spill() throws IOException {
+            if (data == null) {
+                return;
+            }
+            File file = File.createTempFile("drawing-", ".spill");
+            addSpillFile(file);
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(data);
+            } catch (IOException e) {
+                file.delete();
+                removeSpillFile(file);
+                throw e;
+            }
+            spillFile = file;
+            data = null;
+        }
+
+        public synchronized DocumentHistory expand() throws IOException {
+            if (data != null) {
+                return read(new ByteArrayInputStream(data));
+            }
+            try (InputStream in = new FileInputStream(spillFile)) {
+                return read(in);
+            }
+        }
+
+        //delete the spill file (the history cannot be expanded afterwards)
+        public synchronized void discard() {
+            data = null;
+            if (spillFile != null) {
+                spillFile.delete();
+                removeSpillFile(spillFile);
+                spillFile = null;
+            }
+        }
+
+        private static void addSpillFile(File file) {
+            synchronized (liveSpillFiles) {
+                if (!shutdownHookAdded) {
+                    Runtime.getRuntime().addShutdownHook(new Thread(Compressed::deleteSpillFiles, "spill-cleanup"));
+                    shutdownHookAdded = true;
+                }
+                liveSpillFiles.add(file);
+            }
+        }
+
+        private static void removeSpillFile(File file) {
+            synchronized (liveSpillFiles) {
+                liveSpillFiles.remove(file);
+            }
+        }
+
+        private static void deleteSpillFiles() {
+            synchronized (liveSpillFiles) {
+                for (File file : liveSpillFiles) {
+                    file.delete();
+                }
+                liveSpillFiles.clear();
+            }
+        }
+
+        public synchronized boolean isSpilled() {
+            return data == null;
+        }
+
+        //heap still used (0 once spilled)
+        public synchronized long getHeapBytes() {
+            return data == null ? 0 : data.length;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+}
@@ -8,6 +8,7 @@ import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
 import java.util.Stack;
 
 public class DrawingApp extends JFrame implements ActionListener, ChangeListener {
@@ -17,18 +18,25 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
 
     //main panels/components
     private JPanel ribbonPanel;
-    private DrawingPanel canvasPanel;
+    private DrawingPanel canvasPanel; //document in the selected tab
+    private JTabbedPane documentTabs;
     private JMenuBar menuBar;
 
+    //open documents share one memory budget
+    private MemoryGovernor memoryGovernor;
+    private int documentCounter = 0;
+
     //JMenus
     private JMenu fileMenu, editMenu, helpMenu;
 
     //fileMenu items
-    private JMenuItem newItem, saveItem, openItem;
+    private JMenuItem newItem, newTabItem, closeTabItem, saveItem, openItem, restoreAutosaveItem;
     private JMenu autoSaveMenu;
 
     //editMenu items
     private JMenuItem undoItem, redoItem, zoomInItem, zoomOutItem, clearItem;
+    private JMenuItem cutItem, copyItem, pasteItem, selectAllItem, deselectItem, flipHorizontalItem, flipVerticalItem;
+    private JCheckBoxMenuItem paletteStorageItem;
 
     //helpMenu items
     private JMenuItem aboutItem, controlsItem; //list shortcut keys on controls item
@@ -36,6 +44,9 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
     //timer for autosave
     private Timer autoSaveTimer;
 
+    //set when started with -Ddrawingapp.record (sessions replay onto a single document)
+    private InputRecorder recorder;
+
     //ribbonPanel elements
     JButton newButton, clearButton, undoButton, redoButton, colorButton;
     JComboBox<String> brushTypeCombo;
@@ -50,10 +61,57 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
         this.setSize(frameWidth, frameHeight);
         this.setLayout(new BorderLayout());
 
+        //only the canvas is built before the frame is shown, menus and ribbon follow right after
+        documentTabs = new JTabbedPane();
+        memoryGovernor = new MemoryGovernor(MemoryGovernor.defaultBudget());
+        canvasPanel = addDocument();
+        memoryGovernor.setActive(canvasPanel);
+        this.add(documentTabs, BorderLayout.CENTER);
+
+        documentTabs.addChangeListener(this);
+        memoryGovernor.start();
+
+        //clean close -- autosaves of the open (unsaved) documents are removed, older sessions' are pruned
+        AutosaveStore.pruneUnsaved();
+        this.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                for (int i = 0; i < documentTabs.getTabCount(); i++) {
+                    ((DrawingPanel) documentTabs.getComponentAt(i)).closeAutosave();
+                }
+                AutosaveStore.awaitWrites();
+            }
+        });
+
+        //record first frame and start prewarming the dialogs once the window is up
+        this.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                AppStartup.markFirstFrame();
+                AppStartup.prewarm();
+            }
+        });
+
+        //record input for InputReplay when started with -Ddrawingapp.record=<file>
+        //(only the first document is recorded, so no other tabs can be opened while recording;
+        //the file is rewritten periodically and on exit)
+        String recordPath = System.getProperty("drawingapp.record");
+        if (recordPath != null) {
+            recorder = new InputRecorder(canvasPanel, new File(recordPath));
+            recorder.attach();
+        }
+
+        setVisible(true);
+
+        //build the rest of the ui after the first frame is painted
+        SwingUtilities.invokeLater(this::buildControls);
+    }
+
+    //menus and ribbon (deferred so the canvas shows up first)
+    private void buildControls() {
         //initialize main components
         menuBar = new JMenuBar();
         ribbonPanel = new JPanel();
-        canvasPanel = new DrawingPanel();
 
         //initialize and JMenus to menuBar
         fileMenu = new JMenu("File");
@@ -66,9 +124,12 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
 
         //intiialize and add JMenuItems to fileMenu
         newItem = new JMenuItem("New");
+        newTabItem = new JMenuItem("New Tab");
+        closeTabItem = new JMenuItem("Close Tab");
         saveItem = new JMenuItem("Save");
         openItem = new JMenuItem("Open");
         autoSaveMenu = new JMenu("Enable Autosave");
+        restoreAutosaveItem = new JMenuItem("Restore Autosave...");
 
         //create items for autoSaveMenu and add listeners (better this way)
         String[] intervals = {"0s", "1s", "5s", "10s", "30s", "60s"};
@@ -85,6 +146,10 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
         //set mnemonic and accelerators for fileMenuItems
         newItem.setMnemonic(KeyEvent.VK_N);
         newItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_N, KeyEvent.CTRL_DOWN_MASK));
+        newTabItem.setMnemonic(KeyEvent.VK_T);
+        newTabItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_T, KeyEvent.CTRL_DOWN_MASK));
+        closeTabItem.setMnemonic(KeyEvent.VK_W);
+        closeTabItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_W, KeyEvent.CTRL_DOWN_MASK));
         saveItem.setMnemonic(KeyEvent.VK_S);
         saveItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, KeyEvent.CTRL_DOWN_MASK));
         openItem.setMnemonic(KeyEvent.VK_O);
@@ -92,9 +157,12 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
 
         //add items to fileMenu
         fileMenu.add(newItem);
+        fileMenu.add(newTabItem);
+        fileMenu.add(closeTabItem);
         fileMenu.add(saveItem);
         fileMenu.add(openItem);
         fileMenu.add(autoSaveMenu);
+        fileMenu.add(restoreAutosaveItem);
 
         //initialize and add JMenuItems to editMenu
         undoItem = new JMenuItem("Undo");
@@ -102,6 +170,14 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
         zoomInItem = new JMenuItem("Zoom In");
         zoomOutItem = new JMenuItem("Zoom Out");
         clearItem = new JMenuItem("Clear");
+        cutItem = new JMenuItem("Cut");
+        copyItem = new JMenuItem("Copy");
+        pasteItem = new JMenuItem("Paste");
+        selectAllItem = new JMenuItem("Select All");
+        deselectItem = new JMenuItem("Deselect");
+        flipHorizontalItem = new JMenuItem("Flip Selection Horizontally");
+        flipVerticalItem = new JMenuItem("Flip Selection Vertically");
+        paletteStorageItem = new JCheckBoxMenuItem("Compact Line Art Storage", canvasPanel.isPaletteStorage());
 
         //set mnemonic and accelerators for editMenuItems
         undoItem.setMnemonic(KeyEvent.VK_U);
@@ -114,6 +190,16 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
         zoomOutItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, KeyEvent.CTRL_DOWN_MASK));
         clearItem.setMnemonic(KeyEvent.VK_C);
         clearItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_DELETE, KeyEvent.CTRL_DOWN_MASK));
+        cutItem.setMnemonic(KeyEvent.VK_T);
+        cutItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_X, KeyEvent.CTRL_DOWN_MASK));
+        copyItem.setMnemonic(KeyEvent.VK_O);
+        copyItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_C, KeyEvent.CTRL_DOWN_MASK));
+        pasteItem.setMnemonic(KeyEvent.VK_P);
+        pasteItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_V, KeyEvent.CTRL_DOWN_MASK));
+        selectAllItem.setMnemonic(KeyEvent.VK_A);
+        selectAllItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_A, KeyEvent.CTRL_DOWN_MASK));
+        deselectItem.setMnemonic(KeyEvent.VK_D);
+        deselectItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_D, KeyEvent.CTRL_DOWN_MASK));
 
         //add items to editMenu
         editMenu.add(undoItem);
@@ -121,6 +207,16 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
         editMenu.add(zoomInItem);
         editMenu.add(zoomOutItem);
         editMenu.add(clearItem);
+        editMenu.addSeparator();
+        editMenu.add(cutItem);
+        editMenu.add(copyItem);
+        editMenu.add(pasteItem);
+        editMenu.add(selectAllItem);
+        editMenu.add(deselectItem);
+        editMenu.add(flipHorizontalItem);
+        editMenu.add(flipVerticalItem);
+        editMenu.addSeparator();
+        editMenu.add(paletteStorageItem);
 
         //initialize and add JMenuItems to helpMenu (no need for mnemonics and accelerators?)
         aboutItem = new JMenuItem("About"); //TODO -- JDialog about program
@@ -134,16 +230,16 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
 
         //initialize ribbon components
         //TODO -- change text to images
-        newIcon = getScaledIcon("src/new-document.png", 28, 28);
-        undoIcon = getScaledIcon("src/undo.png", 28, 28);
-        redoIcon = getScaledIcon("src/redo.png", 28, 28);
+        newIcon = getScaledIcon("/new-document.png", 28, 28);
+        undoIcon = getScaledIcon("/undo.png", 28, 28);
+        redoIcon = getScaledIcon("/redo.png", 28, 28);
 
         newButton = new JButton(newIcon);
         clearButton = new JButton("Clear");
         undoButton = new JButton(undoIcon);
         redoButton = new JButton(redoIcon);
         colorButton = new JButton("Color");
-        brushTypeCombo = new JComboBox<>(new String[]{"Pencil", "Eraser"});
+        brushTypeCombo = new JComboBox<>(new String[]{"Pencil", "Eraser", "Select", "Lasso"});
         brushSizeSlider = new JSlider(1, 50, canvasPanel.getBrushSize());
 
         //remove the focus border appearing after button is clicked
@@ -168,18 +264,28 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
         //add main components
         this.setJMenuBar(menuBar);
         this.add(ribbonPanel, BorderLayout.NORTH);
-        this.add(canvasPanel, BorderLayout.CENTER);
 
         //add action listeners
         newItem.addActionListener(this);
+        newTabItem.addActionListener(this);
+        closeTabItem.addActionListener(this);
         saveItem.addActionListener(this);
         openItem.addActionListener(this);
         autoSaveMenu.addActionListener(this);
+        restoreAutosaveItem.addActionListener(this);
         undoItem.addActionListener(this);
         redoItem.addActionListener(this);
         zoomInItem.addActionListener(this);
         zoomOutItem.addActionListener(this);
         clearItem.addActionListener(this);
+        cutItem.addActionListener(this);
+        copyItem.addActionListener(this);
+        pasteItem.addActionListener(this);
+        selectAllItem.addActionListener(this);
+        deselectItem.addActionListener(this);
+        flipHorizontalItem.addActionListener(this);
+        flipVerticalItem.addActionListener(this);
+        paletteStorageItem.addActionListener(this);
         aboutItem.addActionListener(this);
         controlsItem.addActionListener(this);
         newButton.addActionListener(this);
@@ -192,7 +298,28 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
         //user change listener for brush size
         brushSizeSlider.addChangeListener(this);
 
-        setVisible(true);
+        //lay out again with the new components
+        revalidate();
+        repaint();
+
+        //edits that cannot be replayed are disabled while recording (the rest are recorded in actionPerformed)
+        if (recorder != null) {
+            newTabItem.setEnabled(false);
+            newTabItem.setToolTipText("Only one document can be open while recording input");
+            for (AbstractButton item : new AbstractButton[]{newItem, newButton, openItem, restoreAutosaveItem}) {
+                item.setEnabled(false);
+                item.setToolTipText("Not available while recording input");
+            }
+        }
+
+        AppStartup.markInteractive();
+    }
+
+    //menu edits replayed by InputReplay (mouse input is recorded by the recorder's listeners)
+    private void recordAction(String action, ActionEvent e) {
+        if (recorder != null) {
+            recorder.recordAction(action, e.getWhen());
+        }
     }
 
     @Override
@@ -201,27 +328,72 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
         if (e.getSource() == newItem || e.getSource() == newButton) {
             //create new canvas
             createNewCanvas();
+        } else if (e.getSource() == newTabItem && recorder == null) {
+            //new document in its own tab
+            documentTabs.setSelectedComponent(addDocument());
+        } else if (e.getSource() == closeTabItem) {
+            closeDocument();
         } else if (e.getSource() == saveItem) {
             //save canvas (use imagebuffer to because i dont want serialization)
             canvasPanel.saveImage(true);
+
+            //name the tab after the saved file
+            if (canvasPanel.getLastSavedFile() != null) {
+                documentTabs.setTitleAt(documentTabs.getSelectedIndex(), canvasPanel.getLastSavedFile().getName());
+            }
         } else if (e.getSource() == openItem) {
             //open saved canvas
             canvasPanel.openImage();
+        } else if (e.getSource() == restoreAutosaveItem) {
+            restoreAutosave();
         } else if (e.getSource() == undoItem || e.getSource() == undoButton) {
             //undo using stack maybe
+            recordAction(InputSession.UNDO, e);
             canvasPanel.undo();
         } else if (e.getSource() == redoItem || e.getSource() == redoButton) {
             //redo from undo stack
+            recordAction(InputSession.REDO, e);
             canvasPanel.redo();
         } else if (e.getSource() == zoomInItem) {
             //zoom in by 1.1
+            recordAction(InputSession.ZOOM_IN, e);
             canvasPanel.zoom(1.1);
         } else if (e.getSource() == zoomOutItem) {
             //zoom out by 0.9
+            recordAction(InputSession.ZOOM_OUT, e);
             canvasPanel.zoom(0.9);
         } else if (e.getSource() == clearItem || e.getSource() == clearButton) {
             //clear current canvas
+            recordAction(InputSession.CLEAR, e);
             canvasPanel.clearCanvas();
+        } else if (e.getSource() == cutItem) {
+            recordAction(InputSession.CUT, e);
+            canvasPanel.cutSelection();
+        } else if (e.getSource() == copyItem) {
+            recordAction(InputSession.COPY, e);
+            canvasPanel.copySelection();
+        } else if (e.getSource() == pasteItem) {
+            //switch to the select tool so the pasted pixels can be dragged into place
+            brushTypeCombo.setSelectedItem("Select");
+            recordAction(InputSession.PASTE, e);
+            canvasPanel.pasteSelection();
+        } else if (e.getSource() == selectAllItem) {
+            brushTypeCombo.setSelectedItem("Select");
+            recordAction(InputSession.SELECT_ALL, e);
+            canvasPanel.selectAll();
+        } else if (e.getSource() == deselectItem) {
+            recordAction(InputSession.DESELECT, e);
+            canvasPanel.deselect();
+        } else if (e.getSource() == flipHorizontalItem) {
+            recordAction(InputSession.FLIP_HORIZONTAL, e);
+            canvasPanel.flipSelection(true);
+        } else if (e.getSource() == flipVerticalItem) {
+            recordAction(InputSession.FLIP_VERTICAL, e);
+            canvasPanel.flipSelection(false);
+        } else if (e.getSource() == paletteStorageItem) {
+            //store few-color tiles as indexed pixels (applies to tiles edited from now on)
+            recordAction(paletteStorageItem.isSelected() ? InputSession.PALETTE_ON : InputSession.PALETTE_OFF, e);
+            canvasPanel.setPaletteStorage(paletteStorageItem.isSelected());
         } else if (e.getSource() == aboutItem) {
             //message dialog about program
             String aboutMessage = "Simple Drawing App\n" +
@@ -234,6 +406,8 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
             //controls dialog
             String controlsMessage = "Shortcut Keys:\n" +
                     "Ctrl + N: New Canvas\n" +
+                    "Ctrl + T: New Tab\n" +
+                    "Ctrl + W: Close Tab\n" +
                     "Ctrl + S: Save Image\n" +
                     "Ctrl + O: Open Image\n" +
                     "Ctrl + Z: Undo\n" +
@@ -241,14 +415,20 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
                     "Ctrl + =: Zoom In\n" +
                     "Ctrl + -: Zoom Out\n" +
                     "Ctrl + Delete: Clear Canvas\n" +
+                    "Ctrl + X / C / V: Cut / Copy / Paste Selection\n" +
+                    "Ctrl + A: Select All\n" +
+                    "Ctrl + D: Deselect\n" +
                     "Middle Mouse Button: Pan\n" +
                     "Ctrl + Mouse Wheel: Zoom";
             JOptionPane.showMessageDialog(this, controlsMessage, "Controls", JOptionPane.INFORMATION_MESSAGE);
         } else if (e.getSource() == colorButton) {
-            Color newColor = JColorChooser.showDialog(null, "Choose Brush Color", canvasPanel.getBrushColor());
-            if (newColor != null) {
-                canvasPanel.setBrushColor(newColor);
-            }
+            //reuse the prewarmed chooser instead of building a new one each time
+            JColorChooser colorChooser = AppStartup.getColorChooser();
+            colorChooser.setColor(canvasPanel.getBrushColor());
+            JDialog colorDialog = JColorChooser.createDialog(this, "Choose Brush Color", true, colorChooser,
+                    ok -> canvasPanel.setBrushColor(colorChooser.getColor()), null);
+            colorDialog.setVisible(true);
+            colorDialog.dispose();
         } else if (e.getSource() == brushTypeCombo) {
             String selectedBrush = (String) brushTypeCombo.getSelectedItem();
             canvasPanel.setBrushType(selectedBrush);
@@ -257,7 +437,9 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
 
     @Override
     public void stateChanged(ChangeEvent e) {
-        if (e.getSource() == brushSizeSlider) {
+        if (e.getSource() == documentTabs) {
+            switchDocument();
+        } else if (e.getSource() == brushSizeSlider) {
             int newSize = brushSizeSlider.getValue();
             canvasPanel.setBrushSize(newSize);
         }
@@ -274,6 +456,70 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
         }
     }
 
+    //pick an autosaved version (this document's by default) and put it on the canvas (can be undone)
+    private void restoreAutosave() {
+        try {
+            AutosaveStore store = canvasPanel.getAutosaveStore();
+            if (store.getVersions().isEmpty() && AutosaveStore.listStores(AutosaveStore.getUnsavedRoot()).isEmpty()) {
+                JOptionPane.showMessageDialog(this, "No autosaved versions yet.", "Restore Autosave", JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+
+            AutosaveBrowser browser = new AutosaveBrowser(store);
+            int result = JOptionPane.showConfirmDialog(this, browser, "Restore Autosave", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+            browser.dispose();
+
+            Long version = browser.getSelectedVersion();
+            if (result == JOptionPane.OK_OPTION && version != null) {
+                canvasPanel.restoreVersion(browser.getSelectedStore().loadVersion(version));
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Could not read autosaves: " + ex.getMessage(), "Restore Autosave", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    //add a document tab (brush and storage settings carry over from the current document)
+    private DrawingPanel addDocument() {
+        DrawingPanel document = new DrawingPanel();
+        if (canvasPanel != null) {
+            copySettings(canvasPanel, document);
+        }
+        documentCounter++;
+        documentTabs.addTab("Drawing " + documentCounter, document);
+        memoryGovernor.register(document);
+        return document;
+    }
+
+    //close the selected tab (the last one stays open)
+    private void closeDocument() {
+        if (documentTabs.getTabCount() <= 1) {
+            return;
+        }
+        DrawingPanel document = canvasPanel;
+        documentTabs.remove(document);
+        memoryGovernor.unregister(document);
+        document.closeAutosave();
+        switchDocument();
+    }
+
+    private void switchDocument() {
+        DrawingPanel selected = (DrawingPanel) documentTabs.getSelectedComponent();
+        if (selected == null || selected == canvasPanel) {
+            return;
+        }
+        copySettings(canvasPanel, selected);
+        canvasPanel = selected;
+        memoryGovernor.setActive(selected);
+    }
+
+    private void copySettings(DrawingPanel from, DrawingPanel to) {
+        to.setBrushSize(from.getBrushSize());
+        to.setBrushColor(from.getBrushColor());
+        to.setBrushType(from.getBrushType());
+        to.setPaletteStorage(from.isPaletteStorage());
+    }
+
     //new canvas with custom dimensions
     private void createNewCanvas() {
         //create text fields with current canvas dimensions as default values
@@ -308,9 +554,14 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
         }
     }
 
-    //scale icons
+    //scale icons (loaded from the classpath so it works regardless of working directory)
     private ImageIcon getScaledIcon(String path, int width, int height) {
-        ImageIcon icon = new ImageIcon(path);
+        URL iconUrl = DrawingApp.class.getResource(path);
+        if (iconUrl == null) {
+            System.out.println("Missing icon resource: " + path); //debug
+            return null;
+        }
+        ImageIcon icon = new ImageIcon(iconUrl);
         Image img = icon.getImage();
         Image resizedImg = img.getScaledInstance(width, height, Image.SCALE_SMOOTH);
         return new ImageIcon(resizedImg);
@@ -318,7 +569,9 @@ public class DrawingApp extends JFrame implements ActionListener, ChangeListener
 
 
     public static void main(String[] args) {
+        AppStartup.startTracking();
 
-        new DrawingApp();
+        //create the frame on the EDT
+        SwingUtilities.invokeLater(DrawingApp::new);
     }
 }
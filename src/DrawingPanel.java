@@ -1,17 +1,23 @@
 import javax.imageio.ImageIO;
 import javax.swing.*;
-import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.Path2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Stack;
+import java.util.UUID;
 
 //USE BUFFER IMAGE!!!
 public class DrawingPanel extends JPanel {
-    private BufferedImage image;
-    private Graphics2D graphics;
+    //tiled storage (few-color tiles are palette compressed)
+    private TileCanvas canvas;
 
     //default values for brush
     private int brushSize = 5;
@@ -20,8 +26,8 @@ public class DrawingPanel extends JPanel {
     private int lastX = -1, lastY =  -1;
 
     //undo and redo
-    private Stack<BufferedImage> undoStack = new Stack<>();
-    private Stack<BufferedImage> redoStack = new Stack<>();
+    private Stack<TileCanvas.Snapshot> undoStack = new Stack<>();
+    private Stack<TileCanvas.Snapshot> redoStack = new Stack<>();
 
     //zoom and pan
     private double zoomFactor = 1.0;
@@ -38,15 +44,32 @@ public class DrawingPanel extends JPanel {
     //store last saved file path for autosave
     private File lastSavedFile;
 
+    //autosave folder name while the document is unsaved (unique per document, sorts by start time)
+    private final String documentId = new SimpleDateFormat("yyyy-MM-dd HH-mm-ss").format(new Date())
+            + " " + UUID.randomUUID().toString().substring(0, 8);
+    private AutosaveStore autosaveStore; //last store used, released when the document is closed
+
+    //selection (floating selections share tiles with the undo snapshot they were lifted from)
+    private Selection selection;
+    private static Selection clipboard; //shared between documents
+    private boolean movingSelection = false;
+    private Shape selectionDraft; //rectangle/lasso being drawn
+    private Path2D.Double lassoPath;
+    private int selectionX, selectionY; //last drag position
+
+    //set while the pixels and history are evicted by the MemoryGovernor
+    private DocumentHistory.Compressed evictedHistory;
+    private boolean restoreFailed = false; //evicted copy could not be read, reported once, retried on tab selection
+    private int modificationCount = 0;
+
     //constructor for DrawingPanel
     public DrawingPanel() {
         //set canvas size and color
         setPreferredSize(new Dimension(canvasWidth, canvasHeight));
         setBackground(Color.WHITE);
 
-        //create image buffer for drawing
-        image = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB);
-        graphics = image.createGraphics();
+        //create tiled buffer for drawing
+        canvas = new TileCanvas(canvasWidth, canvasHeight);
 
         //clear the canvas to initialize the panel
         clearCanvas();
@@ -55,12 +78,24 @@ public class DrawingPanel extends JPanel {
         addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
+                if (!ensureRestored()) {
+                    return;
+                }
                 if (SwingUtilities.isMiddleMouseButton(e)) {
                     //start panning when mmb is pressed
                     isPanning = true;
                     lastMouseX = e.getX();
                     lastMouseY = e.getY();
+                } else if (SwingUtilities.isLeftMouseButton(e) && isSelectionTool()) {
+                    //select or start moving the selection
+                    pressSelection((int) ((e.getX() - offsetX) / zoomFactor) - padding,
+                            (int) ((e.getY() - offsetY) / zoomFactor) - padding);
                 } else if (SwingUtilities.isLeftMouseButton(e)) {
+                    AppStartup.markFirstStroke();
+
+                    //a floating selection is placed before drawing over it
+                    commitSelection();
+
                     //save the current state for undo/redo
                     saveState();
 
@@ -70,13 +105,7 @@ public class DrawingPanel extends JPanel {
 
                     //if clicked -- no need for mouseClicked
                     if (lastX >= 0 && lastX < canvasWidth && lastY >= 0 && lastY < canvasHeight) {
-                        if (brushType.equals("Eraser")) {
-                            graphics.setColor(Color.WHITE);
-                        } else {
-                            graphics.setColor(brushColor);
-                        }
-                        graphics.setStroke(new BasicStroke(brushSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-                        graphics.drawLine(lastX, lastY, lastX, lastY); //draw a single point
+                        drawStroke(lastX, lastY, lastX, lastY); //draw a single point
                         repaint();
                     }
                 }
@@ -84,9 +113,19 @@ public class DrawingPanel extends JPanel {
 
             @Override
             public void mouseReleased(MouseEvent e) {
+                if (!ensureRestored()) {
+                    return;
+                }
                 if (SwingUtilities.isMiddleMouseButton(e)) {
                     //stop panning when mmb is released
                     isPanning = false;
+                } else if (SwingUtilities.isLeftMouseButton(e)) {
+                    if (isSelectionTool()) {
+                        releaseSelection();
+                    }
+
+                    //stroke finished -- compress the touched tiles again
+                    canvas.compact();
                 }
             }
         });
@@ -117,6 +156,9 @@ public class DrawingPanel extends JPanel {
         addMouseMotionListener(new MouseMotionAdapter() {
             @Override
             public void mouseDragged(MouseEvent e) {
+                if (!ensureRestored()) {
+                    return;
+                }
                 if (isPanning) {
                     //update offset based on mouse movement while panning
                     int dx = e.getX() - lastMouseX;
@@ -137,6 +179,10 @@ public class DrawingPanel extends JPanel {
                     lastMouseX = e.getX();
                     lastMouseY = e.getY();
                     repaint();
+                } else if (SwingUtilities.isLeftMouseButton(e) && isSelectionTool()) {
+                    //grow the selection or move it
+                    dragSelection((int) ((e.getX() - offsetX) / zoomFactor) - padding,
+                            (int) ((e.getY() - offsetY) / zoomFactor) - padding);
                 } else if (SwingUtilities.isLeftMouseButton(e)) {
                     //handle drawing when dragging with the left mouse button
                     int x = (int) ((e.getX() - offsetX) / zoomFactor) - padding;
@@ -145,14 +191,7 @@ public class DrawingPanel extends JPanel {
                     //set canvas boundaries as limit on drawing
                     if (x >= 0 && x < canvasWidth && y >= 0 && y < canvasHeight) {
                         if (lastX >= 0 && lastY >= 0 && lastX < canvasWidth && lastY < canvasHeight) {
-                            // Set brush color and erase
-                            if (brushType.equals("Eraser")) {
-                                graphics.setColor(Color.WHITE);
-                            } else {
-                                graphics.setColor(brushColor);
-                            }
-                            graphics.setStroke(new BasicStroke(brushSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-                            graphics.drawLine(lastX, lastY, x, y);
+                            drawStroke(lastX, lastY, x, y);
                         }
                         lastX = x;
                         lastY = y;
@@ -185,6 +224,13 @@ public class DrawingPanel extends JPanel {
         g2d.setColor(paddingColor);
         g2d.fillRect(0, 0, getWidth(), getHeight());
 
+        //pixels are still evicted (restore failed) -- never show the placeholder canvas
+        if (!ensureRestored()) {
+            g2d.setColor(Color.WHITE);
+            g2d.drawString("This drawing could not be restored. Select its tab again to retry.", 20, 30);
+            return;
+        }
+
         //apply zoom and panning transformation here
         g2d.translate(offsetX, offsetY);
         g2d.scale(zoomFactor, zoomFactor);
@@ -196,13 +242,40 @@ public class DrawingPanel extends JPanel {
         //clip drawing to canvas area (strokes musn't overshoot)
         g2d.setClip(padding, padding, canvasWidth, canvasHeight);
 
-        //draw image content onto the canvas
-        g2d.drawImage(image, padding, padding, null);
+        //draw tiles onto the canvas (only the visible ones)
+        canvas.paint(g2d, padding, padding);
+
+        //floating pixels and marching ants
+        if (selection != null || selectionDraft != null) {
+            paintSelection(g2d);
+        }
 
         //reset transformations to avoid affecting other ui elements
         g2d.dispose();
     }
 
+    private void paintSelection(Graphics2D g2d) {
+        Graphics2D g = (Graphics2D) g2d.create();
+        g.translate(padding, padding);
+
+        //floating pixels are drawn straight from the shared tiles (translated overlay, nothing copied)
+        Shape outline = selectionDraft;
+        if (selection != null) {
+            selection.paintContent(g);
+            outline = selection.getShape();
+        }
+
+        //one screen pixel wide dashed outline regardless of zoom
+        float width = (float) (1 / zoomFactor);
+        g.setColor(Color.WHITE);
+        g.setStroke(new BasicStroke(width));
+        g.draw(outline);
+        g.setColor(Color.BLACK);
+        g.setStroke(new BasicStroke(width, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, new float[]{4 * width}, 0));
+        g.draw(outline);
+        g.dispose();
+    }
+
     public void centerCanvas() {
         //get canvas centered offset
         int panelWidth = getWidth();
@@ -217,35 +290,42 @@ public class DrawingPanel extends JPanel {
         offsetY = (panelHeight - scaledCanvasHeight) / 2;
     }
 
+    //draw one brush segment with the current brush (eraser paints white)
+    private void drawStroke(int x1, int y1, int x2, int y2) {
+        Color color = brushType.equals("Eraser") ? Color.WHITE : brushColor;
+        canvas.drawLine(x1, y1, x2, y2, color, new BasicStroke(brushSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+    }
+
     public void clearCanvas() {
+        if (!ensureRestored()) {
+            return;
+        }
+        dropSelection();
         saveState();
 
         //fill canvas
-        graphics.setColor(Color.WHITE);
-        graphics.fillRect(0, 0, canvasWidth, canvasHeight);
+        canvas.fill(Color.WHITE);
 
-        //restore brush color and repaint canvas
-        graphics.setColor(brushColor);
         repaint();
     }
 
     //resize canvas
     public void resizeCanvas(int width, int height) {
+        if (!ensureRestored()) {
+            return;
+        }
+        dropSelection();
+
         //save state for undo function
         saveState();
 
-        //blank image with user specified dimensions
-        BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D newGraphics = newImage.createGraphics();
-
-        //clear canvas
-        clearCanvas();
+        //blank white canvas with user specified dimensions
+        canvas.reset(width, height);
+        canvas.fill(Color.WHITE);
 
         //update canvas parameters
         canvasWidth = width;
         canvasHeight = height;
-        image = newImage;
-        graphics = newGraphics;
 
         //reset zoom and pan
         zoomFactor = 1.0;
@@ -259,11 +339,17 @@ public class DrawingPanel extends JPanel {
     }
 
     public void saveImage(boolean showDialog) {
+        if (!ensureRestored()) {
+            return;
+        }
+
         if (showDialog){
+            //flatten tiles for export
+            BufferedImage image = getCanvasImage();
+
             //use file chooser for saving the image
-            JFileChooser fileChooser = new JFileChooser();
+            JFileChooser fileChooser = AppStartup.getFileChooser();
             fileChooser.setDialogTitle("Save Image");
-            fileChooser.setFileFilter(new FileNameExtensionFilter("PNG", "png"));
 
             int userSelection = fileChooser.showSaveDialog(this);
 
@@ -298,80 +384,32 @@ public class DrawingPanel extends JPanel {
 
                     //store saved file path
                     this.lastSavedFile = fileToSave;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        } else { //auto save - use documents folder
-            if (lastSavedFile != null) {
-                try {
-                    //logic if the file has been manually saved (save a copy with filename and " - autosave" appended)
-                    //same location too
-                    String originalPath = lastSavedFile.getAbsolutePath();
-                    String autoSavePath = originalPath.replace(".png", " - autosave.png");
-                    File autoSaveFile = new File(autoSavePath);
-
-                    //do the same thing with normal save
-                    BufferedImage imageToSave = new BufferedImage(
-                            canvasWidth, canvasHeight, BufferedImage.TYPE_INT_RGB);
-                    Graphics2D g2d = imageToSave.createGraphics();
 
-                    g2d.setColor(Color.WHITE);
-                    g2d.fillRect(0, 0, canvasWidth, canvasHeight);
-
-                    g2d.drawImage(image, 0, 0, null);
-                    g2d.dispose();
-
-                    //save new image to auto-save file
-                    ImageIO.write(imageToSave, "PNG", autoSaveFile);
-                    System.out.println("Auto-save file saved successfully: " + autoSaveFile.getAbsolutePath()); //debug
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            } else {
-                //if the file hasn't been manually saved then save to documents folder
-                String documentsPath = System.getProperty("user.home") + "/Documents";
-                File documentsFolder = new File(documentsPath);
-
-                //check if documents folder exist first
-                if (!documentsFolder.exists()) {
-                    documentsFolder.mkdirs(); //create the folder if it doesn't exist
-                }
-
-                 //save in documents folder
-                File autoSaveFile = new File(documentsFolder, "autosave.png");
-
-                System.out.println("Auto-save file path: " + autoSaveFile.getAbsolutePath()); //debug
-
-                try {
-                    //do the same thing with normal save
-                    BufferedImage imageToSave = new BufferedImage(
-                            canvasWidth, canvasHeight, BufferedImage.TYPE_INT_RGB);
-                    Graphics2D g2d = imageToSave.createGraphics();
-
-                    g2d.setColor(Color.WHITE);
-                    g2d.fillRect(0, 0, canvasWidth, canvasHeight);
-
-                    g2d.drawImage(image, 0, 0, null);
-                    g2d.dispose();
-
-                    //save new image to auto-save file
-                    ImageIO.write(imageToSave, "PNG", autoSaveFile);
-                    System.out.println("Auto-save file saved successfully: " + autoSaveFile.getAbsolutePath()); //debug
+                    //autosaves continue next to the file, the unsaved copies are not needed anymore
+                    AutosaveStore.delete(getUnsavedAutosaveDirectory());
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
-
+        } else { //auto save - store a new version (only changed tiles are written)
+            try {
+                AutosaveStore store = getAutosaveStore();
+                System.out.println("Auto-save file path: " + store.getPackFile().getAbsolutePath()); //debug
+                store.saveAsync(getAutosaveSnapshot());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
-
     }
 
     public void openImage() {
+        if (!ensureRestored()) {
+            return;
+        }
+
         //open a file chooser to select image file
-        JFileChooser fileChooser = new JFileChooser();
+        JFileChooser fileChooser = AppStartup.getFileChooser();
         fileChooser.setDialogTitle("Open Image");
-        fileChooser.setFileFilter(new FileNameExtensionFilter("PNG", "png"));
 
         int userSelection = fileChooser.showOpenDialog(this);
 
@@ -379,8 +417,10 @@ public class DrawingPanel extends JPanel {
             File fileToOpen = fileChooser.getSelectedFile();
             try {
                 //load selected image to drawing panel
-                image = ImageIO.read(fileToOpen);
-                graphics = image.createGraphics();
+                dropSelection();
+                canvas.load(ImageIO.read(fileToOpen));
+                modificationCount++;
+                syncCanvasSize();
                 repaint();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -389,21 +429,34 @@ public class DrawingPanel extends JPanel {
     }
 
     public void undo() {
+        if (!ensureRestored()) {
+            return;
+        }
+        //placing the floating selection first makes undo go back to before the move/paste
+        dropSelection();
+
         if (!undoStack.isEmpty()) {
             //save current state to redo stack and restore last state
-            redoStack.push(image);
-            image = undoStack.pop();
-            graphics = image.createGraphics();
+            redoStack.push(canvas.snapshot());
+            canvas.restore(undoStack.pop());
+            modificationCount++;
+            syncCanvasSize();
             repaint();
         }
     }
 
     public void redo() {
+        if (!ensureRestored()) {
+            return;
+        }
+        dropSelection();
+
         if (!redoStack.isEmpty()){
             //save current state to undo stack and restorethe last redo state
-            undoStack.push(image);
-            image = redoStack.pop();
-            graphics = image.createGraphics();
+            undoStack.push(canvas.snapshot());
+            canvas.restore(redoStack.pop());
+            modificationCount++;
+            syncCanvasSize();
             repaint();
         }
     }
@@ -415,13 +468,176 @@ public class DrawingPanel extends JPanel {
 
     //do undo and redo first
     private void saveState() {
-        //save a copy of the current canvas for undo functionality (get a canvas snapshot)
-        BufferedImage copy = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = copy.createGraphics();
-        g.drawImage(image, 0, 0, null);
-        g.dispose();
-        undoStack.push(copy);
+        //save a snapshot of the current canvas for undo functionality (tiles are shared, not copied)
+        undoStack.push(canvas.snapshot());
         redoStack.clear();
+        modificationCount++;
+    }
+
+    private boolean isSelectionTool() {
+        return brushType.equals("Select") || brushType.equals("Lasso");
+    }
+
+    private void pressSelection(int x, int y) {
+        if (selection != null && selection.contains(x, y)) {
+            //start moving (lift the pixels the first time)
+            if (!selection.isFloating()) {
+                liftSelection();
+            }
+            movingSelection = true;
+        } else {
+            //start a new selection
+            dropSelection();
+            if (brushType.equals("Lasso")) {
+                lassoPath = new Path2D.Double();
+                lassoPath.moveTo(x, y);
+                selectionDraft = lassoPath;
+            } else {
+                selectionDraft = new Rectangle(x, y, 0, 0);
+            }
+        }
+        selectionX = x;
+        selectionY = y;
+        repaint();
+    }
+
+    private void dragSelection(int x, int y) {
+        if (movingSelection && selection != null) {
+            //whole pixel steps keep the tiles pixel exact
+            selection.translate(x - selectionX, y - selectionY);
+            selectionX = x;
+            selectionY = y;
+        } else if (lassoPath != null) {
+            lassoPath.lineTo(x, y);
+        } else if (selectionDraft != null) {
+            selectionDraft = new Rectangle(Math.min(selectionX, x), Math.min(selectionY, y),
+                    Math.abs(x - selectionX), Math.abs(y - selectionY));
+        }
+        repaint();
+    }
+
+    private void releaseSelection() {
+        if (movingSelection) {
+            //dropped -- write the moved pixels into the canvas
+            movingSelection = false;
+            if (selection != null) {
+                commitSelection();
+            }
+        } else if (selectionDraft != null) {
+            if (lassoPath != null) {
+                lassoPath.closePath();
+            }
+            selection = Selection.clipped(selectionDraft, canvasWidth, canvasHeight);
+            selectionDraft = null;
+            lassoPath = null;
+        }
+        repaint();
+    }
+
+    //float the selected pixels: source area becomes white, the floating pixels keep the pre-lift tiles
+    private void liftSelection() {
+        saveState();
+        selection = selection.lift(undoStack.peek());
+        clearArea(selection.getShape());
+    }
+
+    private void clearArea(Shape area) {
+        canvas.fill(area, Color.WHITE);
+        canvas.compact();
+    }
+
+    //place a floating selection into the canvas (keeps the outline selected)
+    public void commitSelection() {
+        if (selection != null && selection.isFloating()) {
+            selection.commit(canvas);
+            selection = selection.outline();
+            modificationCount++;
+            repaint();
+        }
+    }
+
+    public void selectAll() {
+        if (!ensureRestored()) {
+            return;
+        }
+        dropSelection();
+        selection = new Selection(new Rectangle(0, 0, canvasWidth, canvasHeight));
+        repaint();
+    }
+
+    public void deselect() {
+        if (!ensureRestored()) {
+            return;
+        }
+        dropSelection();
+        repaint();
+    }
+
+    //place any floating pixels and forget the selection, including a move or outline still being dragged
+    private void dropSelection() {
+        commitSelection();
+        selection = null;
+        movingSelection = false;
+        selectionDraft = null;
+        lassoPath = null;
+    }
+
+    public void copySelection() {
+        if (!ensureRestored()) {
+            return;
+        }
+        if (selection != null) {
+            commitSelection();
+            clipboard = selection.lift(canvas.snapshot());
+        }
+    }
+
+    public void cutSelection() {
+        if (!ensureRestored()) {
+            return;
+        }
+        if (selection != null) {
+            copySelection();
+            saveState();
+            clearArea(selection.getShape());
+            repaint();
+        }
+    }
+
+    //paste as a floating selection at the copied position (drag to move, placed on drop)
+    public void pasteSelection() {
+        if (!ensureRestored()) {
+            return;
+        }
+        if (clipboard != null) {
+            dropSelection();
+            saveState();
+            selection = clipboard.copy();
+            repaint();
+        }
+    }
+
+    public void flipSelection(boolean horizontal) {
+        if (!ensureRestored()) {
+            return;
+        }
+        if (selection != null) {
+            if (!selection.isFloating()) {
+                liftSelection();
+            }
+            selection.flip(horizontal);
+            commitSelection();
+        }
+    }
+
+    public boolean hasSelection() {
+        return selection != null;
+    }
+
+    //canvas size follows the restored/loaded content
+    private void syncCanvasSize() {
+        canvasWidth = canvas.getWidth();
+        canvasHeight = canvas.getHeight();
     }
 
     //getters and setters
@@ -433,6 +649,200 @@ public class DrawingPanel extends JPanel {
         return canvasHeight;
     }
 
+    //flattened copy of the canvas (a floating selection is included without placing it)
+    public BufferedImage getCanvasImage() {
+        ensureRestored();
+        BufferedImage image = canvas.toImage();
+        if (selection != null && selection.isFloating()) {
+            Graphics2D g = image.createGraphics();
+            selection.paintContent(g);
+            g.dispose();
+        }
+        return image;
+    }
+
+    //immutable copy of the canvas and undo/redo stacks (for background work)
+    //compactEdits = false leaves a stroke in progress alone (the copy is then only good for measuring)
+    public DocumentHistory captureHistory(boolean compactEdits) {
+        if (compactEdits) {
+            //floating pixels are placed, so the copy holds everything the document references
+            commitSelection();
+        }
+        TileCanvas.Snapshot current = compactEdits ? canvas.snapshot() : canvas.peekSnapshot();
+        return new DocumentHistory(current, new ArrayList<>(undoStack), new ArrayList<>(redoStack));
+    }
+
+    //bytes of pixel data created by this document so far (only grows)
+    public long getAllocatedBytes() {
+        return canvas.getAllocatedBytes();
+    }
+
+    //drop pixels and history in favour of the compressed copy, unless the document changed since it was captured
+    public boolean evict(DocumentHistory.Compressed compressed, int expectedModificationCount) {
+        //a floating selection's tiles are not in the compressed copy
+        if (evictedHistory != null || modificationCount != expectedModificationCount
+                || (selection != null && selection.isFloating())) {
+            return false;
+        }
+        evictedHistory = compressed;
+        canvas.reset(1, 1);
+        undoStack.clear();
+        redoStack.clear();
+        return true;
+    }
+
+    //bring evicted pixels and history back (called on tab selection, and lazily before painting)
+    //on failure the compressed copy is kept and the document stays evicted instead of becoming a blank canvas
+    private void restoreIfEvicted() {
+        if (evictedHistory == null) {
+            return;
+        }
+        try {
+            DocumentHistory history = evictedHistory.expand();
+            canvas.restore(history.getCurrent());
+            undoStack.addAll(history.getUndo());
+            redoStack.addAll(history.getRedo());
+            syncCanvasSize();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            if (!restoreFailed) {
+                restoreFailed = true;
+                String message = "This drawing could not be restored from memory/disk:\n" + e.getMessage()
+                        + "\nIt is kept as is; select its tab again to retry.";
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, message, "Restore Failed", JOptionPane.ERROR_MESSAGE));
+            }
+            return;
+        }
+        restoreFailed = false;
+        evictedHistory.discard();
+        evictedHistory = null;
+    }
+
+    //selected again -- try a failed restore once more
+    public void retryRestore() {
+        restoreFailed = false;
+        restoreIfEvicted();
+    }
+
+    //false while the pixels are evicted and could not be restored (edits would go to the placeholder canvas)
+    private boolean ensureRestored() {
+        if (evictedHistory != null && !restoreFailed) {
+            restoreIfEvicted();
+        }
+        return evictedHistory == null;
+    }
+
+    //forget the evicted copy (document closed)
+    public void discardEvicted() {
+        if (evictedHistory != null) {
+            evictedHistory.discard();
+        }
+    }
+
+    public boolean isEvicted() {
+        return evictedHistory != null;
+    }
+
+    public DocumentHistory.Compressed getEvictedHistory() {
+        return evictedHistory;
+    }
+
+    public int getModificationCount() {
+        return modificationCount;
+    }
+
+    //drop the oldest undo states (when a single document is over the memory budget)
+    public void trimHistory(int count) {
+        for (int i = 0; i < count && !undoStack.isEmpty(); i++) {
+            undoStack.remove(0);
+        }
+    }
+
+    public int getUndoCount() {
+        return undoStack.size();
+    }
+
+    public File getLastSavedFile() {
+        return lastSavedFile;
+    }
+
+    //autosave versions go next to the saved file ("<name> - autosave" folder), otherwise to this document's own
+    //folder in Documents/autosave (tabs never share a store)
+    public AutosaveStore getAutosaveStore() throws IOException {
+        File directory;
+        if (lastSavedFile != null) {
+            String originalPath = lastSavedFile.getAbsolutePath();
+            directory = new File(originalPath.replace(".png", "") + " - autosave");
+        } else {
+            directory = getUnsavedAutosaveDirectory();
+        }
+
+        //saved under a new name -- the old store is no longer written
+        if (autosaveStore != null && !autosaveStore.getDirectory().equals(directory.getAbsoluteFile())) {
+            AutosaveStore.release(autosaveStore);
+        }
+        autosaveStore = AutosaveStore.forDirectory(directory);
+        return autosaveStore;
+    }
+
+    //document closed -- drop its autosave index (versions of an unsaved document are deleted)
+    public void closeAutosave() {
+        if (autosaveStore != null) {
+            AutosaveStore.release(autosaveStore);
+            autosaveStore = null;
+        }
+        AutosaveStore.delete(getUnsavedAutosaveDirectory());
+    }
+
+    private File getUnsavedAutosaveDirectory() {
+        return new File(AutosaveStore.getUnsavedRoot(), documentId);
+    }
+
+    //current canvas including a floating selection (copy-on-write, the document is not changed)
+    private TileCanvas.Snapshot getAutosaveSnapshot() {
+        if (selection == null || !selection.isFloating()) {
+            return canvas.snapshot();
+        }
+        TileCanvas flattened = new TileCanvas(canvasWidth, canvasHeight);
+        flattened.setPaletteStorage(canvas.isPaletteStorage());
+        flattened.restore(canvas.snapshot());
+        selection.commit(flattened);
+        return flattened.snapshot();
+    }
+
+    //replace the canvas with an autosaved version (undoable)
+    public void restoreVersion(TileCanvas.Snapshot version) {
+        if (!ensureRestored()) {
+            return;
+        }
+        dropSelection();
+        saveState();
+        canvas.restore(version);
+        syncCanvasSize();
+        repaint();
+    }
+
+    public boolean isPaletteStorage() {
+        return canvas.isPaletteStorage();
+    }
+
+    public void setPaletteStorage(boolean paletteStorage) {
+        canvas.setPaletteStorage(paletteStorage);
+    }
+
+    //heap used by canvas pixels and undo/redo history (shared tiles counted once)
+    public long getMemoryFootprint() {
+        Map<Tile, Boolean> seen = new IdentityHashMap<>();
+        long total = canvas.getByteSize(seen);
+        for (TileCanvas.Snapshot snapshot : undoStack) {
+            total += snapshot.getByteSize(seen);
+        }
+        for (TileCanvas.Snapshot snapshot : redoStack) {
+            total += snapshot.getByteSize(seen);
+        }
+        return total;
+    }
+
     public int getBrushSize() {
         return brushSize;
     }
@@ -0,0 +1,151 @@
+import javax.swing.Timer;
+import java.awt.event.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+//records the mouse input (and the menu edits reported through recordAction) of a DrawingPanel into an InputSession
+//for InputReplay -- the file is rewritten every few seconds and on exit, so a crash loses at most the last interval
+public class InputRecorder extends MouseAdapter {
+    private static final int FLUSH_INTERVAL_MS = 5000;
+
+    private final DrawingPanel panel;
+    private final File file;
+    private final InputSession session;
+    private long startTime = -1;
+
+    //events are added on the EDT, the last save runs in a shutdown hook (guarded by this)
+    private int savedCount = -1;
+    private final Timer flushTimer = new Timer(FLUSH_INTERVAL_MS, e -> saveQuietly());
+    private final Thread shutdownHook = new Thread(this::saveQuietly, "input-recorder-save");
+
+    //last brush settings written to the session
+    private int brushSize = -1;
+    private int brushColor;
+    private String brushType;
+
+    public InputRecorder(DrawingPanel panel, File file) {
+        this.panel = panel;
+        this.file = file;
+        this.session = new InputSession(0, 0);
+    }
+
+    //start listening (add before the user draws anything)
+    public void attach() {
+        panel.addMouseListener(this);
+        panel.addMouseMotionListener(this);
+        panel.addMouseWheelListener(this);
+        flushTimer.start();
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    //stop listening and write the final session
+    public void detach() throws IOException {
+        panel.removeMouseListener(this);
+        panel.removeMouseMotionListener(this);
+        panel.removeMouseWheelListener(this);
+        flushTimer.stop();
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        save();
+    }
+
+    //rewrite the file if events were added (written next to it first, so a crash mid-write keeps the last save)
+    public synchronized void save() throws IOException {
+        if (session.getEvents().size() == savedCount) {
+            return;
+        }
+        File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        session.write(temp);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        savedCount = session.getEvents().size();
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public InputSession getSession() {
+        return session;
+    }
+
+    @Override
+    public void mousePressed(MouseEvent e) {
+        //brush settings only matter when a stroke starts
+        recordBrushIfChanged(e);
+        record(InputSession.PRESS, e);
+    }
+
+    @Override
+    public void mouseReleased(MouseEvent e) {
+        record(InputSession.RELEASE, e);
+    }
+
+    @Override
+    public void mouseDragged(MouseEvent e) {
+        record(InputSession.DRAG, e);
+    }
+
+    @Override
+    public void mouseMoved(MouseEvent e) {
+        record(InputSession.MOVE, e);
+    }
+
+    @Override
+    public void mouseWheelMoved(MouseWheelEvent e) {
+        InputSession.Event event = record(InputSession.WHEEL, e);
+        event.wheelRotation = e.getWheelRotation();
+    }
+
+    //a menu/keyboard edit (one of the InputSession action names), when = ActionEvent.getWhen()
+    public synchronized void recordAction(String action, long when) {
+        InputSession.Event event = new InputSession.Event();
+        event.type = InputSession.ACTION;
+        event.time = elapsed(when);
+        event.action = action;
+        session.add(event);
+    }
+
+    private synchronized InputSession.Event record(int type, MouseEvent e) {
+        InputSession.Event event = new InputSession.Event();
+        event.type = type;
+        event.time = elapsed(e.getWhen());
+        event.x = e.getX();
+        event.y = e.getY();
+        event.modifiers = e.getModifiersEx();
+        event.button = e.getButton();
+        session.add(event);
+        return event;
+    }
+
+    private synchronized void recordBrushIfChanged(MouseEvent e) {
+        int color = panel.getBrushColor().getRGB();
+        if (panel.getBrushSize() == brushSize && color == brushColor && panel.getBrushType().equals(brushType)) {
+            return;
+        }
+        brushSize = panel.getBrushSize();
+        brushColor = color;
+        brushType = panel.getBrushType();
+
+        InputSession.Event event = new InputSession.Event();
+        event.type = InputSession.BRUSH;
+        event.time = elapsed(e.getWhen());
+        event.brushSize = brushSize;
+        event.brushColor = brushColor;
+        event.brushType = brushType;
+        session.add(event);
+    }
+
+    private long elapsed(long when) {
+        if (startTime < 0) {
+            //panel size is only known once the frame is laid out
+            startTime = when;
+            session.setPanelSize(panel.getWidth(), panel.getHeight());
+        }
+        return Math.max(0, when - startTime);
+    }
+}
@@ -0,0 +1,358 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+//replays a recorded InputSession into a fresh DrawingPanel and reports throughput
+//usage: java InputReplay <session file> [--speed <factor>|--max] [--headless] [--expect <canvas hash>]
+public class InputReplay {
+    private static final double FRAME_INTERVAL_MS = 1000.0 / 60;
+
+    private final InputSession session;
+    private final double speed; //0 = as fast as possible
+    private final boolean headless;
+
+    private DrawingPanel panel;
+    private BufferedImage frameBuffer; //headless frames are painted here
+
+    //results
+    private int eventCount;
+    private int frameCount;
+    private int lateFrames;
+    private int droppedFrames;
+    private long maxFrameNanos;
+    private long elapsedNanos;
+    private long peakHeap;
+    private String canvasHash;
+    private String frameHash;
+
+    public InputReplay(InputSession session, double speed, boolean headless) {
+        this.session = session;
+        this.speed = speed;
+        this.headless = headless;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: java InputReplay <session file> [--speed <factor>|--max] [--headless] [--expect <canvas hash>]");
+            System.exit(2);
+        }
+
+        double speed = 1.0;
+        boolean headless = false;
+        String expectedHash = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--speed")) {
+                speed = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--max")) {
+                speed = 0;
+            } else if (args[i].equals("--headless")) {
+                headless = true;
+            } else if (args[i].equals("--expect")) {
+                expectedHash = args[++i];
+            }
+        }
+
+        //must be set before any AWT class looks at the environment
+        if (headless) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        headless = headless || GraphicsEnvironment.isHeadless();
+
+        InputSession session = InputSession.read(new File(args[0]));
+        InputReplay replay = new InputReplay(session, speed, headless);
+        replay.run();
+        replay.printReport();
+
+        //non-zero exit so CI catches output regressions
+        if (expectedHash != null && !expectedHash.equalsIgnoreCase(replay.canvasHash)) {
+            System.out.println("Canvas hash mismatch, expected " + expectedHash);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        SwingUtilities.invokeAndWait(this::createPanel);
+        resetPeakHeap();
+
+        List<InputSession.Event> events = session.getEvents();
+        long start = System.nanoTime();
+        //frames are due every 16.7 ms of wall-clock time at any speed (like a 60 Hz display), so late/dropped
+        //counts compare between speeds; with --max there is no clock and frames follow the recorded time instead
+        double nextFrameTime = 0; //ms since start of the next frame
+        int index = 0;
+
+        while (index < events.size()) {
+            InputSession.Event event = events.get(index);
+            double eventTime = speed > 0 ? event.time / speed : event.time;
+
+            //a frame is due before this event
+            if (eventTime >= nextFrameTime) {
+                if (speed > 0 && isBehind(start, nextFrameTime + FRAME_INTERVAL_MS)) {
+                    //already past the whole frame slot -- skip it like a missed vsync
+                    droppedFrames++;
+                } else {
+                    waitUntil(start, nextFrameTime);
+                    renderFrame(start, nextFrameTime);
+                }
+                nextFrameTime += FRAME_INTERVAL_MS;
+                continue;
+            }
+
+            waitUntil(start, eventTime);
+            SwingUtilities.invokeAndWait(() -> dispatch(event));
+            eventCount++;
+            index++;
+        }
+
+        //final frame so the last strokes are on screen
+        renderFrame(start, nextFrameTime);
+        elapsedNanos = System.nanoTime() - start;
+
+        SwingUtilities.invokeAndWait(() -> canvasHash = hash(panel.getCanvasImage()));
+        if (headless) {
+            frameHash = hash(frameBuffer);
+        }
+        peakHeap = readPeakHeap();
+    }
+
+    private void createPanel() {
+        panel = new DrawingPanel();
+        int width = session.getPanelWidth() > 0 ? session.getPanelWidth() : 1100;
+        int height = session.getPanelHeight() > 0 ? session.getPanelHeight() : 1100;
+
+        if (headless) {
+            panel.setSize(width, height);
+            frameBuffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        } else {
+            JFrame frame = new JFrame("Input Replay");
+            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            panel.setPreferredSize(new Dimension(width, height));
+            frame.add(panel);
+            frame.pack();
+            frame.setVisible(true);
+            panel.setSize(width, height);
+        }
+
+        //same starting view as a freshly opened window
+        panel.centerCanvas();
+    }
+
+    private void dispatch(InputSession.Event event) {
+        long when = System.currentTimeMillis();
+        switch (event.type) {
+            case InputSession.PRESS:
+                panel.dispatchEvent(new MouseEvent(panel, MouseEvent.MOUSE_PRESSED, when, event.modifiers,
+                        event.x, event.y, 1, false, event.button));
+                break;
+            case InputSession.RELEASE:
+                panel.dispatchEvent(new MouseEvent(panel, MouseEvent.MOUSE_RELEASED, when, event.modifiers,
+                        event.x, event.y, 1, false, event.button));
+                break;
+            case InputSession.DRAG:
+                panel.dispatchEvent(new MouseEvent(panel, MouseEvent.MOUSE_DRAGGED, when, event.modifiers,
+                        event.x, event.y, 0, false, MouseEvent.NOBUTTON));
+                break;
+            case InputSession.MOVE:
+                panel.dispatchEvent(new MouseEvent(panel, MouseEvent.MOUSE_MOVED, when, event.modifiers,
+                        event.x, event.y, 0, false, MouseEvent.NOBUTTON));
+                break;
+            case InputSession.WHEEL:
+                panel.dispatchEvent(new MouseWheelEvent(panel, MouseEvent.MOUSE_WHEEL, when, event.modifiers,
+                        event.x, event.y, 0, false, MouseWheelEvent.WHEEL_UNIT_SCROLL, 1, event.wheelRotation));
+                break;
+            case InputSession.BRUSH:
+                panel.setBrushSize(event.brushSize);
+                panel.setBrushColor(new Color(event.brushColor, true));
+                panel.setBrushType(event.brushType);
+                break;
+            case InputSession.ACTION:
+                dispatchAction(event.action);
+                break;
+            default:
+                break;
+        }
+    }
+
+    //same panel calls as the DrawingApp menu items
+    private void dispatchAction(String action) {
+        switch (action) {
+            case InputSession.UNDO:
+                panel.undo();
+                break;
+            case InputSession.REDO:
+                panel.redo();
+                break;
+            case InputSession.CLEAR:
+                panel.clearCanvas();
+                break;
+            case InputSession.CUT:
+                panel.cutSelection();
+                break;
+            case InputSession.COPY:
+                panel.copySelection();
+                break;
+            case InputSession.PASTE:
+                panel.setBrushType("Select");
+                panel.pasteSelection();
+                break;
+            case InputSession.SELECT_ALL:
+                panel.setBrushType("Select");
+                panel.selectAll();
+                break;
+            case InputSession.DESELECT:
+                panel.deselect();
+                break;
+            case InputSession.FLIP_HORIZONTAL:
+                panel.flipSelection(true);
+                break;
+            case InputSession.FLIP_VERTICAL:
+                panel.flipSelection(false);
+                break;
+            case InputSession.ZOOM_IN:
+                panel.zoom(1.1);
+                break;
+            case InputSession.ZOOM_OUT:
+                panel.zoom(0.9);
+                break;
+            case InputSession.PALETTE_ON:
+                panel.setPaletteStorage(true);
+                break;
+            case InputSession.PALETTE_OFF:
+                panel.setPaletteStorage(false);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown recorded action: " + action);
+        }
+    }
+
+    private void renderFrame(long start, double frameTime) throws Exception {
+        long frameStart = System.nanoTime();
+        SwingUtilities.invokeAndWait(() -> {
+            if (headless) {
+                Graphics2D g = frameBuffer.createGraphics();
+                panel.paint(g);
+                g.dispose();
+            } else {
+                panel.paintImmediately(0, 0, panel.getWidth(), panel.getHeight());
+            }
+        });
+        long frameNanos = System.nanoTime() - frameStart;
+        maxFrameNanos = Math.max(maxFrameNanos, frameNanos);
+        frameCount++;
+
+        //late = finished after the next vsync would have happened
+        if (speed > 0 && isBehind(start, frameTime + FRAME_INTERVAL_MS)) {
+            lateFrames++;
+        } else if (speed == 0 && frameNanos > FRAME_INTERVAL_MS * 1_000_000) {
+            lateFrames++;
+        }
+
+        peakHeap = Math.max(peakHeap, readPeakHeap());
+    }
+
+    //sleep until the given ms since start (wall clock) have passed
+    private void waitUntil(long start, double time) throws InterruptedException {
+        if (speed <= 0) {
+            return;
+        }
+        long target = start + (long) (time * 1_000_000);
+        long remaining = target - System.nanoTime();
+        if (remaining > 0) {
+            Thread.sleep(remaining / 1_000_000, (int) (remaining % 1_000_000));
+        }
+    }
+
+    private boolean isBehind(long start, double time) {
+        return System.nanoTime() > start + (long) (time * 1_000_000);
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long readPeakHeap() {
+        long total = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                total += pool.getPeakUsage().getUsed();
+            }
+        }
+        return total;
+    }
+
+    //sha-256 of the ARGB pixels (independent of how the image is stored)
+    static String hash(BufferedImage image) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            int[] row = new int[image.getWidth()];
+            byte[] bytes = new byte[row.length * 4];
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.getRGB(0, y, row.length, 1, row, 0, row.length);
+                for (int x = 0; x < row.length; x++) {
+                    bytes[x * 4] = (byte) (row[x] >>> 24);
+                    bytes[x * 4 + 1] = (byte) (row[x] >>> 16);
+                    bytes[x * 4 + 2] = (byte) (row[x] >>> 8);
+                    bytes[x * 4 + 3] = (byte) row[x];
+                }
+                digest.update(bytes);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void printReport() {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("Replayed " + eventCount + " events (" + session.getDuration() + " ms recorded) in "
+                + String.format("%.3f", seconds) + " s" + (headless ? " [headless]" : ""));
+        System.out.println("Events/sec: " + String.format("%.0f", eventCount / Math.max(seconds, 1e-9)));
+        System.out.println("Frames: " + frameCount + ", late: " + lateFrames + ", dropped: " + droppedFrames
+                + ", slowest: " + String.format("%.2f", maxFrameNanos / 1e6) + " ms");
+        System.out.println("Peak heap: " + (peakHeap / (1024 * 1024)) + " MB");
+        System.out.println("Canvas hash: " + canvasHash);
+        if (frameHash != null) {
+            System.out.println("Frame hash: " + frameHash);
+        }
+    }
+
+    //getters for use from other harness code
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    public int getLateFrames() {
+        return lateFrames;
+    }
+
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getPeakHeap() {
+        return peakHeap;
+    }
+
+    public String getCanvasHash() {
+        return canvasHash;
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+//recorded mouse input and menu edits for a DrawingPanel, stored in a compact delta/varint encoded file
+public class InputSession {
+    //event types
+    public static final int PRESS = 1;
+    public static final int RELEASE = 2;
+    public static final int DRAG = 3;
+    public static final int MOVE = 4;
+    public static final int WHEEL = 5;
+    public static final int BRUSH = 6; //brush settings changed before the next press
+    public static final int ACTION = 7; //menu/keyboard edit (one of the action names below)
+
+    //action names
+    public static final String UNDO = "undo";
+    public static final String REDO = "redo";
+    public static final String CLEAR = "clear";
+    public static final String CUT = "cut";
+    public static final String COPY = "copy";
+    public static final String PASTE = "paste";
+    public static final String SELECT_ALL = "selectAll";
+    public static final String DESELECT = "deselect";
+    public static final String FLIP_HORIZONTAL = "flipHorizontal";
+    public static final String FLIP_VERTICAL = "flipVertical";
+    public static final String ZOOM_IN = "zoomIn";
+    public static final String ZOOM_OUT = "zoomOut";
+    public static final String PALETTE_ON = "paletteOn";
+    public static final String PALETTE_OFF = "paletteOff";
+
+    private static final int MAGIC = 0x44524E49; //"DRNI"
+    private static final int VERSION = 2; //1 = mouse input only, still readable
+    private static final int MODIFIERS_CHANGED = 0x80; //flag in the type byte
+
+    //panel size when recording started (drawing coordinates depend on it through centerCanvas)
+    private int panelWidth;
+    private int panelHeight;
+    private final List<Event> events = new ArrayList<>();
+
+    public InputSession(int panelWidth, int panelHeight) {
+        this.panelWidth = panelWidth;
+        this.panelHeight = panelHeight;
+    }
+
+    public void add(Event event) {
+        events.add(event);
+    }
+
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    public void setPanelSize(int panelWidth, int panelHeight) {
+        this.panelWidth = panelWidth;
+        this.panelHeight = panelHeight;
+    }
+
+    public int getPanelWidth() {
+        return panelWidth;
+    }
+
+    public int getPanelHeight() {
+        return panelHeight;
+    }
+
+    //total recorded time in ms
+    public long getDuration() {
+        return events.isEmpty() ? 0 : events.get(events.size() - 1).time;
+    }
+
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            writeVarInt(out, panelWidth);
+            writeVarInt(out, panelHeight);
+            writeVarInt(out, events.size());
+
+            //everything is stored relative to the previous event
+            long lastTime = 0;
+            int lastX = 0, lastY = 0, lastModifiers = 0;
+            for (Event event : events) {
+                boolean modifiersChanged = event.modifiers != lastModifiers;
+                out.writeByte(event.type | (modifiersChanged ? MODIFIERS_CHANGED : 0));
+                writeVarInt(out, (int) (event.time - lastTime));
+                if (modifiersChanged) {
+                    writeVarInt(out, event.modifiers);
+                }
+
+                if (event.type == BRUSH) {
+                    writeVarInt(out, event.brushSize);
+                    out.writeInt(event.brushColor);
+                    out.writeUTF(event.brushType);
+                } else if (event.type == ACTION) {
+                    out.writeUTF(event.action);
+                } else {
+                    writeVarInt(out, zigZag(event.x - lastX));
+                    writeVarInt(out, zigZag(event.y - lastY));
+                    if (event.type == PRESS || event.type == RELEASE) {
+                        writeVarInt(out, event.button);
+                    } else if (event.type == WHEEL) {
+                        writeVarInt(out, zigZag(event.wheelRotation));
+                    }
+                    lastX = event.x;
+                    lastY = event.y;
+                }
+
+                lastTime = event.time;
+                lastModifiers = event.modifiers;
+            }
+        }
+    }
+
+    public static InputSession read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an input session file: " + file);
+            }
+            int version = in.readUnsignedByte();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported input session version: " + version);
+            }
+
+            InputSession session = new InputSession(readVarInt(in), readVarInt(in));
+            int count = readVarInt(in);
+
+            long lastTime = 0;
+            int lastX = 0, lastY = 0, lastModifiers = 0;
+            for (int i = 0; i < count; i++) {
+                int typeByte = in.readUnsignedByte();
+                Event event = new Event();
+                event.type = typeByte & ~MODIFIERS_CHANGED;
+                event.time = lastTime + readVarInt(in);
+                event.modifiers = (typeByte & MODIFIERS_CHANGED) != 0 ? readVarInt(in) : lastModifiers;
+
+                if (event.type == BRUSH) {
+                    event.brushSize = readVarInt(in);
+                    event.brushColor = in.readInt();
+                    event.brushType = in.readUTF();
+                    event.x = lastX;
+                    event.y = lastY;
+                } else if (event.type == ACTION) {
+                    event.action = in.readUTF();
+                    event.x = lastX;
+                    event.y = lastY;
+                } else {
+                    event.x = lastX + unZigZag(readVarInt(in));
+                    event.y = lastY + unZigZag(readVarInt(in));
+                    if (event.type == PRESS || event.type == RELEASE) {
+                        event.button = readVarInt(in);
+                    } else if (event.type == WHEEL) {
+                        event.wheelRotation = unZigZag(readVarInt(in));
+                    }
+                    lastX = event.x;
+                    lastY = event.y;
+                }
+
+                lastTime = event.time;
+                lastModifiers = event.modifiers;
+                session.add(event);
+            }
+            return session;
+        }
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    //one recorded input event (time is ms since the session started)
+    public static class Event {
+        public int type;
+        public long time;
+        public int x, y;
+        public int modifiers; //MouseEvent.getModifiersEx()
+        public int button;
+        public int wheelRotation;
+
+        //BRUSH events only
+        public int brushSize;
+        public int brushColor;
+        public String brushType;
+
+        //ACTION events only
+        public String action;
+    }
+}
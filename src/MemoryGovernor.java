@@ -0,0 +1,231 @@
+import javax.swing.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//keeps the pixels and undo/redo history of all open documents under one heap budget
+//inactive documents are compressed (then spilled to disk) in the background and restored when selected again
+public class MemoryGovernor {
+    private static final int CHECK_INTERVAL_MS = 2000;
+    private static final double MEASURE_THRESHOLD = 0.8; //full measurement once the estimate reaches this share of the budget
+
+    private final long budget;
+
+    //least recently used first
+    private final List<DrawingPanel> documents = new ArrayList<>();
+    private DrawingPanel activeDocument;
+
+    //last full measurement per document (EDT only), the estimate adds what was allocated since
+    private final Map<DrawingPanel, Measurement> measurements = new HashMap<>();
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "memory-governor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private Timer checkTimer;
+    private boolean checking = false;
+    private volatile long lastTotal = 0;
+
+    public MemoryGovernor(long budget) {
+        this.budget = budget;
+    }
+
+    //-Ddrawingapp.memoryBudgetMB=<n>, otherwise half of the max heap
+    public static long defaultBudget() {
+        String budgetMB = System.getProperty("drawingapp.memoryBudgetMB");
+        if (budgetMB != null) {
+            try {
+                return Long.parseLong(budgetMB) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid drawingapp.memoryBudgetMB: " + budgetMB); //debug
+            }
+        }
+        return Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    public void start() {
+        if (checkTimer == null) {
+            checkTimer = new Timer(CHECK_INTERVAL_MS, e -> check());
+            checkTimer.start();
+        }
+    }
+
+    public void stop() {
+        if (checkTimer != null) {
+            checkTimer.stop();
+            checkTimer = null;
+        }
+    }
+
+    public void register(DrawingPanel document) {
+        documents.add(document);
+        measurements.put(document, new Measurement(document.getMemoryFootprint(), document.getAllocatedBytes()));
+    }
+
+    public void unregister(DrawingPanel document) {
+        documents.remove(document);
+        measurements.remove(document);
+        document.discardEvicted();
+        if (activeDocument == document) {
+            activeDocument = null;
+        }
+    }
+
+    //selected tab changed -- restore it right away and mark it most recently used
+    public void setActive(DrawingPanel document) {
+        activeDocument = document;
+        documents.remove(document);
+        documents.add(document);
+        document.retryRestore();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    //heap used by all documents at the last check
+    public long getLastTotal() {
+        return lastTotal;
+    }
+
+    //upper bound from the last measurements plus everything allocated since (no tile walking)
+    private long estimateTotal() {
+        long total = 0;
+        for (DrawingPanel document : documents) {
+            if (document.isEvicted()) {
+                total += document.getEvictedHistory().getHeapBytes();
+            } else {
+                Measurement measurement = measurements.get(document);
+                total += measurement.size + document.getAllocatedBytes() - measurement.allocated;
+            }
+        }
+        return total;
+    }
+
+    //runs on the EDT: well under budget the estimate is enough; otherwise capture immutable state,
+    //then measure and compress on the worker thread
+    private void check() {
+        if (checking) {
+            return;
+        }
+
+        long estimate = estimateTotal();
+        if (estimate < budget * MEASURE_THRESHOLD) {
+            lastTotal = estimate;
+            return;
+        }
+        checking = true;
+
+        List<Entry> entries = new ArrayList<>();
+        for (DrawingPanel document : documents) {
+            Entry entry = new Entry();
+            entry.document = document;
+            entry.active = document == activeDocument;
+            if (document.isEvicted()) {
+                entry.compressed = document.getEvictedHistory();
+            } else {
+                //the active document is never evicted -- measure it without touching a stroke in progress
+                entry.history = document.captureHistory(!entry.active);
+            }
+            //read after capturing (placing a floating selection counts as a change)
+            entry.modificationCount = document.getModificationCount();
+            entry.allocated = document.getAllocatedBytes();
+            entries.add(entry);
+        }
+
+        worker.execute(() -> {
+            long total = 0;
+            for (Entry entry : entries) {
+                entry.size = entry.history != null ? entry.history.getByteSize() : entry.compressed.getHeapBytes();
+                entry.measuredSize = entry.size;
+                total += entry.size;
+            }
+
+            try {
+                //first compress inactive documents, least recently used first
+                for (Entry entry : entries) {
+                    if (total <= budget) {
+                        break;
+                    }
+                    if (!entry.active && entry.history != null) {
+                        entry.compressed = entry.history.compress();
+                        entry.evict = true;
+                        total -= entry.size - entry.compressed.getHeapBytes();
+                        entry.size = entry.compressed.getHeapBytes();
+                    }
+                }
+
+                //still over -- move the compressed copies to disk
+                for (Entry entry : entries) {
+                    if (total <= budget) {
+                        break;
+                    }
+                    if (!entry.active && entry.compressed != null && !entry.compressed.isSpilled()) {
+                        entry.compressed.spill();
+                        total -= entry.size;
+                        entry.size = 0;
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            long finalTotal = total;
+            SwingUtilities.invokeLater(() -> apply(entries, finalTotal));
+        });
+    }
+
+    //back on the EDT: swap in the compressed copies that are still valid
+    private void apply(List<Entry> entries, long total) {
+        for (Entry entry : entries) {
+            if (entry.history != null && measurements.containsKey(entry.document)) {
+                measurements.put(entry.document, new Measurement(entry.measuredSize, entry.allocated));
+            }
+            if (entry.evict) {
+                boolean evicted = documents.contains(entry.document) && entry.document != activeDocument
+                        && entry.document.evict(entry.compressed, entry.modificationCount);
+                if (!evicted) {
+                    //changed or selected meanwhile, keep it resident
+                    entry.compressed.discard();
+                    total += entry.measuredSize - entry.size;
+                }
+            }
+        }
+
+        //the active document alone can still be over budget -- drop its oldest undo states
+        if (total > budget && activeDocument != null && activeDocument.getUndoCount() > 0) {
+            activeDocument.trimHistory(Math.max(1, activeDocument.getUndoCount() / 4));
+        }
+
+        lastTotal = total;
+        checking = false;
+    }
+
+    private static class Entry {
+        DrawingPanel document;
+        boolean active;
+        int modificationCount;
+        DocumentHistory history;
+        DocumentHistory.Compressed compressed;
+        boolean evict;
+        long size;
+        long measuredSize; //before compression
+        long allocated;
+    }
+
+    private static class Measurement {
+        final long size;
+        final long allocated; //document's allocated bytes when it was measured
+
+        Measurement(long size, long allocated) {
+            this.size = size;
+            this.allocated = allocated;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+
+//selected region of the canvas (rectangle or lasso)
+//a floating selection draws from a snapshot of the source tiles (shared, copy-on-write) until it is committed
+public class Selection {
+    private final Shape shape; //in source canvas coordinates
+    private final TileCanvas.Snapshot content; //null while the selection is only an outline
+    private final AffineTransform transform; //source -> canvas (moves and flips)
+    private final TileRenderer renderer = new TileRenderer();
+
+    public Selection(Shape shape) {
+        this(shape, null, new AffineTransform());
+    }
+
+    private Selection(Shape shape, TileCanvas.Snapshot content, AffineTransform transform) {
+        this.shape = shape;
+        this.content = content;
+        this.transform = transform;
+    }
+
+    //float the pixels under the outline (references the snapshot's tiles under the selection, nothing is copied)
+    public Selection lift(TileCanvas.Snapshot snapshot) {
+        return new Selection(getShape(), snapshot.crop(getBounds()), new AffineTransform());
+    }
+
+    //outline at its current position, content dropped
+    public Selection outline() {
+        return new Selection(getShape());
+    }
+
+    //new floating selection with the same content (used for paste)
+    public Selection copy() {
+        return new Selection(shape, content, new AffineTransform(transform));
+    }
+
+    public boolean isFloating() {
+        return content != null;
+    }
+
+    public void translate(double dx, double dy) {
+        transform.preConcatenate(AffineTransform.getTranslateInstance(dx, dy));
+    }
+
+    //mirror around the centre of the current bounds (pixel exact)
+    public void flip(boolean horizontal) {
+        Rectangle bounds = getBounds();
+        AffineTransform flip = new AffineTransform();
+        if (horizontal) {
+            flip.translate(2 * bounds.x + bounds.width, 0);
+            flip.scale(-1, 1);
+        } else {
+            flip.translate(0, 2 * bounds.y + bounds.height);
+            flip.scale(1, -1);
+        }
+        transform.preConcatenate(flip);
+    }
+
+    //outline in canvas coordinates
+    public Shape getShape() {
+        return transform.createTransformedShape(shape);
+    }
+
+    public Rectangle getBounds() {
+        return getShape().getBounds();
+    }
+
+    public boolean contains(double x, double y) {
+        return getShape().contains(x, y);
+    }
+
+    //draw the floating pixels onto g (canvas coordinates)
+    public void paintContent(Graphics2D g) {
+        if (content == null) {
+            return;
+        }
+        Graphics2D contentGraphics = (Graphics2D) g.create();
+        contentGraphics.transform(transform);
+        contentGraphics.clip(shape);
+
+        //only the source tiles under the clip are drawn
+        content.paint(contentGraphics, renderer);
+        contentGraphics.dispose();
+    }
+
+    //write the floating pixels into the canvas (only the tiles under the selection are copied)
+    public void commit(TileCanvas canvas) {
+        canvas.draw(getBounds(), this::paintContent);
+        canvas.compact();
+    }
+
+    //selection limited to the canvas area
+    public static Selection clipped(Shape shape, int width, int height) {
+        Area area = new Area(shape);
+        area.intersect(new Area(new Rectangle(0, 0, width, height)));
+        if (area.isEmpty()) {
+            return null;
+        }
+        return new Selection(area);
+    }
+}
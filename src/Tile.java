@@ -0,0 +1,311 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+//immutable block of canvas pixels, stored 1/2/4/8-bit indexed when it has few colors, ARGB otherwise
+public final class Tile {
+    //max palette entries before a tile is promoted to ARGB
+    public static final int MAX_PALETTE_SIZE = 256;
+
+    //shared instances for full tiles of the blank colors (white canvas/cleared areas, transparent reset)
+    //other single-color tiles are regular tiles so nothing outlives the documents that use them
+    private static final int WHITE = 0xFFFFFFFF;
+    private static final int TRANSPARENT = 0x00000000;
+    private static final Tile WHITE_TILE = fromIndices(new byte[TileCanvas.TILE_SIZE * TileCanvas.TILE_SIZE],
+            new int[]{WHITE}, TileCanvas.TILE_SIZE, TileCanvas.TILE_SIZE);
+    private static final Tile TRANSPARENT_TILE = fromIndices(new byte[TileCanvas.TILE_SIZE * TileCanvas.TILE_SIZE],
+            new int[]{TRANSPARENT}, TileCanvas.TILE_SIZE, TileCanvas.TILE_SIZE);
+
+    private final int width;
+    private final int height;
+    private final BufferedImage image;
+    private final int[] palette; //null for ARGB tiles
+    private final int bitsPerPixel;
+    private volatile byte[] contentHash; //computed on first use
+
+    private Tile(int width, int height, BufferedImage image, int[] palette, int bitsPerPixel) {
+        this.width = width;
+        this.height = height;
+        this.image = image;
+        this.palette = palette;
+        this.bitsPerPixel = bitsPerPixel;
+    }
+
+    //tile filled with a single color
+    public static Tile uniform(int argb, int width, int height) {
+        if (width == TileCanvas.TILE_SIZE && height == TileCanvas.TILE_SIZE) {
+            Tile shared = sharedUniform(argb);
+            if (shared != null) {
+                return shared;
+            }
+        }
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, argb);
+        return encode(pixels, width, height, true);
+    }
+
+    //build a tile from ARGB pixels (row-major, width * height), palette compressed if allowed and possible
+    public static Tile encode(int[] pixels, int width, int height, boolean usePalette) {
+        if (usePalette) {
+            Tile indexed = encodeIndexed(pixels, width, height);
+            if (indexed != null) {
+                return indexed;
+            }
+        }
+
+        //too many colors (or palette mode off) -- keep full ARGB
+        BufferedImage argbImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] data = ((DataBufferInt) argbImage.getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, 0, data, 0, width * height);
+        return new Tile(width, height, argbImage, null, 32);
+    }
+
+    //returns null when the pixels need more than MAX_PALETTE_SIZE colors
+    private static Tile encodeIndexed(int[] pixels, int width, int height) {
+        int count = width * height;
+        int[] palette = new int[MAX_PALETTE_SIZE];
+        int paletteSize = 0;
+        byte[] indices = new byte[count];
+
+        //small open addressing table color -> palette index (slot holds index + 1, 0 = empty)
+        int[] keys = new int[MAX_PALETTE_SIZE * 4];
+        int[] slots = new int[MAX_PALETTE_SIZE * 4];
+        int mask = keys.length - 1;
+
+        int lastColor = 0;
+        int lastIndex = -1;
+        for (int i = 0; i < count; i++) {
+            int color = pixels[i];
+
+            //line art is mostly runs of the same color
+            if (color == lastColor && lastIndex >= 0) {
+                indices[i] = (byte) lastIndex;
+                continue;
+            }
+
+            int slot = (color * 0x9E3779B1) >>> 22 & mask;
+            while (slots[slot] != 0 && keys[slot] != color) {
+                slot = (slot + 1) & mask;
+            }
+            int index;
+            if (slots[slot] != 0) {
+                index = slots[slot] - 1;
+            } else {
+                if (paletteSize == MAX_PALETTE_SIZE) {
+                    return null;
+                }
+                index = paletteSize++;
+                palette[index] = color;
+                keys[slot] = color;
+                slots[slot] = index + 1;
+            }
+
+            indices[i] = (byte) index;
+            lastColor = color;
+            lastIndex = index;
+        }
+
+        if (paletteSize == 1 && width == TileCanvas.TILE_SIZE && height == TileCanvas.TILE_SIZE) {
+            Tile shared = sharedUniform(palette[0]);
+            if (shared != null) {
+                return shared;
+            }
+        }
+        return fromIndices(indices, Arrays.copyOf(palette, paletteSize), width, height);
+    }
+
+    //pack palette indices (one per byte) into the smallest pixel depth that fits the palette
+    static Tile fromIndices(byte[] indices, int[] palette, int width, int height) {
+        int bits = bitsFor(palette.length);
+        WritableRaster raster = createIndexedRaster(width, height, bits);
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+
+        if (bits == 8) {
+            System.arraycopy(indices, 0, data, 0, width * height);
+        } else {
+            int stride = (width * bits + 7) / 8;
+            int pixelsPerByte = 8 / bits;
+
+            //first pixel goes in the most significant bits
+            for (int y = 0; y < height; y++) {
+                int row = y * width;
+                int rowStart = y * stride;
+                for (int x = 0; x < width; x++) {
+                    int shift = 8 - bits * (x % pixelsPerByte + 1);
+                    data[rowStart + x / pixelsPerByte] |= (byte) ((indices[row + x] & 0xFF) << shift);
+                }
+            }
+        }
+
+        return fromRaster(raster, palette, bits, width, height);
+    }
+
+    private static WritableRaster createIndexedRaster(int width, int height, int bits) {
+        if (bits == 8) {
+            return Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, width, height, 1, null);
+        }
+        return Raster.createPackedRaster(DataBuffer.TYPE_BYTE, width, height, 1, bits, null);
+    }
+
+    private static Tile fromRaster(WritableRaster raster, int[] palette, int bits, int width, int height) {
+        IndexColorModel colorModel = new IndexColorModel(bits, palette.length, palette, 0, true, -1, DataBuffer.TYPE_BYTE);
+        BufferedImage indexedImage = new BufferedImage(colorModel, raster, false, null);
+        return new Tile(width, height, indexedImage, palette, bits);
+    }
+
+    //raw storage format (palette + packed pixels, or ARGB ints)
+    public void write(DataOutput out) throws IOException {
+        out.writeShort(width);
+        out.writeShort(height);
+        out.writeByte(bitsPerPixel);
+        if (palette == null) {
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < width * height; i++) {
+                out.writeInt(data[i]);
+            }
+        } else {
+            out.writeShort(palette.length);
+            for (int color : palette) {
+                out.writeInt(color);
+            }
+            out.write(((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+        }
+    }
+
+    //sha-1 of the stored form (identical content gives identical hashes, used for deduplication)
+    public byte[] getContentHash() {
+        byte[] hash = contentHash;
+        if (hash == null) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                write(new DataOutputStream(bytes));
+                hash = digest.digest(bytes.toByteArray());
+            } catch (IOException | NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            contentHash = hash;
+        }
+        return hash;
+    }
+
+    public static Tile read(DataInput in) throws IOException {
+        int width = in.readUnsignedShort();
+        int height = in.readUnsignedShort();
+        int bits = in.readUnsignedByte();
+        if (bits == 32) {
+            int[] pixels = new int[width * height];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = in.readInt();
+            }
+            return encode(pixels, width, height, false);
+        }
+
+        int[] palette = new int[in.readUnsignedShort()];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = in.readInt();
+        }
+        WritableRaster raster = createIndexedRaster(width, height, bits);
+        in.readFully(((DataBufferByte) raster.getDataBuffer()).getData());
+        Tile tile = fromRaster(raster, palette, bits, width, height);
+        if (palette.length == 1 && width == TileCanvas.TILE_SIZE && height == TileCanvas.TILE_SIZE) {
+            Tile shared = sharedUniform(palette[0]);
+            if (shared != null) {
+                return shared;
+            }
+        }
+        return tile;
+    }
+
+    //shared full tile of the given color, null if that color is not shared
+    private static Tile sharedUniform(int color) {
+        if (color == WHITE) {
+            return WHITE_TILE;
+        } else if (color == TRANSPARENT) {
+            return TRANSPARENT_TILE;
+        }
+        return null;
+    }
+
+    private static int bitsFor(int paletteSize) {
+        if (paletteSize <= 2) {
+            return 1;
+        } else if (paletteSize <= 4) {
+            return 2;
+        } else if (paletteSize <= 16) {
+            return 4;
+        }
+        return 8;
+    }
+
+    //expand back to ARGB pixels (row-major, width * height)
+    public int[] decode() {
+        int[] pixels = new int[width * height];
+        decodeInto(pixels);
+        return pixels;
+    }
+
+    public void decodeInto(int[] pixels) {
+        if (palette == null) {
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            System.arraycopy(data, 0, pixels, 0, width * height);
+        } else {
+            int[] indices = getIndices();
+            for (int i = 0; i < width * height; i++) {
+                pixels[i] = palette[indices[i]];
+            }
+        }
+    }
+
+    //palette index per pixel (indexed tiles only)
+    public int[] getIndices() {
+        return image.getRaster().getSamples(0, 0, width, height, 0, (int[]) null);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    //image for painting (do not modify)
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public boolean isIndexed() {
+        return palette != null;
+    }
+
+    public int getBitsPerPixel() {
+        return bitsPerPixel;
+    }
+
+    //palette colors (indexed tiles only, do not modify)
+    public int[] getPalette() {
+        return palette;
+    }
+
+    //approximate heap used by the pixel data
+    public long getByteSize() {
+        if (palette == null) {
+            return (long) width * height * 4;
+        }
+        long rasterBytes = (long) ((width * bitsPerPixel + 7) / 8) * height;
+        return rasterBytes + palette.length * 4L;
+    }
+}
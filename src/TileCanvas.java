@@ -0,0 +1,382 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+//canvas pixels split into tiles -- tiles are immutable and shared (undo snapshots only copy references)
+//tiles touched by the current edit are kept as ARGB working images until compact() is called
+public class TileCanvas {
+    public static final int TILE_SIZE = 64;
+
+    private int width;
+    private int height;
+    private int columns;
+    private int rows;
+    private Tile[] tiles;
+    private BufferedImage[] workingTiles; //non-null while a tile is being edited
+
+    //keep few-color tiles palette compressed (false = always ARGB)
+    private boolean paletteStorage = true;
+
+    //bytes of tiles encoded so far (only grows, for cheap memory estimates -- working images are short-lived)
+    private long allocatedBytes = 0;
+
+    private final TileRenderer renderer = new TileRenderer();
+
+    public TileCanvas(int width, int height) {
+        reset(width, height);
+    }
+
+    //blank (transparent) canvas with new dimensions
+    public void reset(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.tiles = new Tile[columns * rows];
+        this.workingTiles = new BufferedImage[columns * rows];
+        fill(new Color(0, 0, 0, 0));
+    }
+
+    //replace all content with a copy of the given image
+    public void load(BufferedImage source) {
+        reset(source.getWidth(), source.getHeight());
+        int[] buffer = new int[TILE_SIZE * TILE_SIZE];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int tileX = column * TILE_SIZE;
+                int tileY = row * TILE_SIZE;
+                int tileWidth = tileWidth(column);
+                int tileHeight = tileHeight(row);
+                source.getRGB(tileX, tileY, tileWidth, tileHeight, buffer, 0, tileWidth);
+                tiles[row * columns + column] = Tile.encode(buffer, tileWidth, tileHeight, paletteStorage);
+                allocatedBytes += tiles[row * columns + column].getByteSize();
+            }
+        }
+    }
+
+    //fill the whole canvas with one color (full tiles share a single tile instance)
+    public void fill(Color color) {
+        int argb = color.getRGB();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                tiles[row * columns + column] = Tile.uniform(argb, tileWidth(column), tileHeight(row));
+                workingTiles[row * columns + column] = null;
+            }
+        }
+    }
+
+    //draw a line segment with the given color and stroke
+    public void drawLine(int x1, int y1, int x2, int y2, Color color, BasicStroke stroke) {
+        int margin = (int) Math.ceil(stroke.getLineWidth() / 2) + 2;
+        Rectangle bounds = new Rectangle(Math.min(x1, x2) - margin, Math.min(y1, y2) - margin,
+                Math.abs(x2 - x1) + 2 * margin, Math.abs(y2 - y1) + 2 * margin);
+        draw(bounds, g -> {
+            g.setColor(color);
+            g.setStroke(stroke);
+            g.drawLine(x1, y1, x2, y2);
+        });
+    }
+
+    //fill a shape with an opaque color: tiles the shape fully covers become the shared uniform tile,
+    //only the tiles on its edge are written (from a 1-bit mask of the shape, rasterized once)
+    public void fill(Shape area, Color color) {
+        if (color.getAlpha() != 255) {
+            draw(area.getBounds(), g -> {
+                g.setColor(color);
+                g.fill(area);
+            });
+            return;
+        }
+
+        int argb = color.getRGB();
+        Rectangle bounds = area.getBounds().intersection(new Rectangle(0, 0, width, height));
+        if (bounds.isEmpty()) {
+            return;
+        }
+
+        BufferedImage mask = null;
+        for (int row = bounds.y / TILE_SIZE; row <= (bounds.y + bounds.height - 1) / TILE_SIZE; row++) {
+            for (int column = bounds.x / TILE_SIZE; column <= (bounds.x + bounds.width - 1) / TILE_SIZE; column++) {
+                Rectangle tileBounds = new Rectangle(column * TILE_SIZE, row * TILE_SIZE, tileWidth(column), tileHeight(row));
+                if (area.contains(tileBounds)) {
+                    tiles[row * columns + column] = Tile.uniform(argb, tileBounds.width, tileBounds.height);
+                    workingTiles[row * columns + column] = null;
+                    continue;
+                }
+
+                if (mask == null) {
+                    mask = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_BYTE_BINARY);
+                    Graphics2D g = mask.createGraphics();
+                    g.translate(-bounds.x, -bounds.y);
+                    g.setColor(Color.WHITE);
+                    g.fill(area);
+                    g.dispose();
+                }
+                Rectangle edge = tileBounds.intersection(bounds);
+                BufferedImage working = getWorkingTile(row * columns + column);
+                int[] pixels = ((DataBufferInt) working.getRaster().getDataBuffer()).getData();
+                Raster maskRaster = mask.getRaster();
+                for (int y = edge.y; y < edge.y + edge.height; y++) {
+                    for (int x = edge.x; x < edge.x + edge.width; x++) {
+                        if (maskRaster.getSample(x - bounds.x, y - bounds.y, 0) != 0) {
+                            pixels[(y - tileBounds.y) * working.getWidth() + (x - tileBounds.x)] = argb;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    //run the painter over bounds (canvas coordinates) and write the result into the tiles it covers
+    //the painter runs once on one image, so a stroke is rasterized the same on both sides of a tile seam
+    public void draw(Rectangle bounds, Consumer<Graphics2D> painter) {
+        Rectangle area = bounds.intersection(new Rectangle(0, 0, width, height));
+        if (area.isEmpty()) {
+            return;
+        }
+
+        int firstColumn = area.x / TILE_SIZE;
+        int lastColumn = (area.x + area.width - 1) / TILE_SIZE;
+        int firstRow = area.y / TILE_SIZE;
+        int lastRow = (area.y + area.height - 1) / TILE_SIZE;
+
+        //current pixels under the area, so translucent paint blends with them
+        BufferedImage scratch = new BufferedImage(area.width, area.height, BufferedImage.TYPE_INT_ARGB);
+        int[] scratchPixels = ((DataBufferInt) scratch.getRaster().getDataBuffer()).getData();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                copyTile(getWorkingTile(row * columns + column), column, row, scratchPixels, area, true);
+            }
+        }
+
+        Graphics2D g = scratch.createGraphics();
+        g.translate(-area.x, -area.y);
+        painter.accept(g);
+        g.dispose();
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                copyTile(workingTiles[row * columns + column], column, row, scratchPixels, area, false);
+            }
+        }
+    }
+
+    //copy the part of a working tile inside area to (toScratch) or from the scratch pixels of area
+    private static void copyTile(BufferedImage working, int column, int row, int[] scratchPixels, Rectangle area, boolean toScratch) {
+        int[] pixels = ((DataBufferInt) working.getRaster().getDataBuffer()).getData();
+        int tileX = column * TILE_SIZE;
+        int tileY = row * TILE_SIZE;
+        int left = Math.max(area.x, tileX);
+        int right = Math.min(area.x + area.width, tileX + working.getWidth());
+        int top = Math.max(area.y, tileY);
+        int bottom = Math.min(area.y + area.height, tileY + working.getHeight());
+        for (int y = top; y < bottom; y++) {
+            int tileOffset = (y - tileY) * working.getWidth() + (left - tileX);
+            int scratchOffset = (y - area.y) * area.width + (left - area.x);
+            if (toScratch) {
+                System.arraycopy(pixels, tileOffset, scratchPixels, scratchOffset, right - left);
+            } else {
+                System.arraycopy(scratchPixels, scratchOffset, pixels, tileOffset, right - left);
+            }
+        }
+    }
+
+    //copy-on-write: decode the shared tile into a private ARGB image the first time it is edited
+    private BufferedImage getWorkingTile(int index) {
+        BufferedImage working = workingTiles[index];
+        if (working == null) {
+            Tile tile = tiles[index];
+            working = new BufferedImage(tile.getWidth(), tile.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            tile.decodeInto(((DataBufferInt) working.getRaster().getDataBuffer()).getData());
+            workingTiles[index] = working;
+        }
+        return working;
+    }
+
+    //re-encode the edited tiles (call at the end of a stroke/edit)
+    public void compact() {
+        for (int i = 0; i < workingTiles.length; i++) {
+            BufferedImage working = workingTiles[i];
+            if (working != null) {
+                int[] pixels = ((DataBufferInt) working.getRaster().getDataBuffer()).getData();
+                tiles[i] = Tile.encode(pixels, working.getWidth(), working.getHeight(), paletteStorage);
+                workingTiles[i] = null;
+                allocatedBytes += tiles[i].getByteSize();
+            }
+        }
+    }
+
+    //paint the tiles at (x, y), skipping tiles outside the clip
+    public void paint(Graphics2D g, int x, int y) {
+        renderer.paint(g, x, y, width, height, tiles, workingTiles);
+    }
+
+    //flatten to a single ARGB image (for export)
+    public BufferedImage toImage() {
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] buffer = new int[TILE_SIZE * TILE_SIZE];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int index = row * columns + column;
+                int tileWidth = tileWidth(column);
+                int tileHeight = tileHeight(row);
+                if (workingTiles[index] != null) {
+                    workingTiles[index].getRaster().getDataElements(0, 0, tileWidth, tileHeight, buffer);
+                } else {
+                    tiles[index].decodeInto(buffer);
+                }
+                result.getRaster().setDataElements(column * TILE_SIZE, row * TILE_SIZE, tileWidth, tileHeight, buffer);
+            }
+        }
+        return result;
+    }
+
+    //immutable copy of the current state (shares tiles, costs one reference per tile)
+    public Snapshot snapshot() {
+        compact();
+        return new Snapshot(width, height, tiles.clone());
+    }
+
+    //same without re-encoding tiles being edited (they show their content from before the edit) -- for measuring
+    //mid-stroke without stalling it
+    public Snapshot peekSnapshot() {
+        return new Snapshot(width, height, tiles.clone());
+    }
+
+    public void restore(Snapshot snapshot) {
+        this.width = snapshot.width;
+        this.height = snapshot.height;
+        this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.tiles = snapshot.tiles.clone();
+        this.workingTiles = new BufferedImage[tiles.length];
+    }
+
+    //heap used by the current tiles (shared tiles counted once)
+    public long getByteSize() {
+        return getByteSize(new IdentityHashMap<>());
+    }
+
+    //same, skipping tiles already in seen (to total up several canvases/snapshots)
+    public long getByteSize(Map<Tile, Boolean> seen) {
+        long total = 0;
+        for (int i = 0; i < tiles.length; i++) {
+            if (workingTiles[i] != null) {
+                total += (long) workingTiles[i].getWidth() * workingTiles[i].getHeight() * 4;
+            } else if (seen.put(tiles[i], Boolean.TRUE) == null) {
+                total += tiles[i].getByteSize();
+            }
+        }
+        return total;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private int tileWidth(int column) {
+        return Math.min(TILE_SIZE, width - column * TILE_SIZE);
+    }
+
+    private int tileHeight(int row) {
+        return Math.min(TILE_SIZE, height - row * TILE_SIZE);
+    }
+
+    //getters and setters
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isPaletteStorage() {
+        return paletteStorage;
+    }
+
+    public void setPaletteStorage(boolean paletteStorage) {
+        this.paletteStorage = paletteStorage;
+    }
+
+    //saved canvas state for undo/redo
+    public static final class Snapshot {
+        private final int width;
+        private final int height;
+        private final Tile[] tiles;
+        private final int x, y; //canvas position (non-zero only for crops)
+
+        Snapshot(int width, int height, Tile[] tiles) {
+            this(width, height, tiles, 0, 0);
+        }
+
+        private Snapshot(int width, int height, Tile[] tiles, int x, int y) {
+            this.width = width;
+            this.height = height;
+            this.tiles = tiles;
+            this.x = x;
+            this.y = y;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getTileCount() {
+            return tiles.length;
+        }
+
+        public Tile getTile(int index) {
+            return tiles[index];
+        }
+
+        //only the tiles intersecting bounds, so the rest of the canvas is not kept alive (for painting only --
+        //the crop keeps its position, it cannot be restored into a canvas)
+        public Snapshot crop(Rectangle bounds) {
+            Rectangle local = new Rectangle(bounds);
+            local.translate(-x, -y);
+            Rectangle area = local.intersection(new Rectangle(0, 0, width, height));
+            if (area.isEmpty()) {
+                return new Snapshot(0, 0, new Tile[0], 0, 0);
+            }
+            int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+            int firstColumn = area.x / TILE_SIZE;
+            int lastColumn = (area.x + area.width - 1) / TILE_SIZE;
+            int firstRow = area.y / TILE_SIZE;
+            int lastRow = (area.y + area.height - 1) / TILE_SIZE;
+
+            int cropColumns = lastColumn - firstColumn + 1;
+            Tile[] cropTiles = new Tile[cropColumns * (lastRow - firstRow + 1)];
+            for (int row = firstRow; row <= lastRow; row++) {
+                System.arraycopy(tiles, row * columns + firstColumn, cropTiles, (row - firstRow) * cropColumns, cropColumns);
+            }
+            int cropWidth = Math.min(width, (lastColumn + 1) * TILE_SIZE) - firstColumn * TILE_SIZE;
+            int cropHeight = Math.min(height, (lastRow + 1) * TILE_SIZE) - firstRow * TILE_SIZE;
+            return new Snapshot(cropWidth, cropHeight, cropTiles, x + firstColumn * TILE_SIZE, y + firstRow * TILE_SIZE);
+        }
+
+        //paint the tiles at canvas coordinates, skipping tiles outside the clip
+        public void paint(Graphics2D g, TileRenderer renderer) {
+            renderer.paint(g, x, y, width, height, tiles, null);
+        }
+
+        //heap used by tiles not already in seen
+        public long getByteSize(Map<Tile, Boolean> seen) {
+            long total = 0;
+            for (Tile tile : tiles) {
+                if (seen.put(tile, Boolean.TRUE) == null) {
+                    total += tile.getByteSize();
+                }
+            }
+            return total;
+        }
+    }
+}
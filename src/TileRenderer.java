@@ -0,0 +1,150 @@
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+//paints a grid of tiles through whatever zoom the graphics has
+//at 1:1 the tiles are blitted directly; otherwise the visible tiles are composed 1:1 (or downsampled when
+//zoomed out) into one buffer that is drawn with a single scaled blit -- Java2D is slow at many small scaled blits
+public class TileRenderer {
+    private static final int TILE_SIZE = TileCanvas.TILE_SIZE;
+    private static final int MAX_LEVEL = 4; //1/16 scale
+
+    //one compose buffer per painting thread, shared by every canvas and selection (sized to the visible area,
+    //so a large canvas does not keep a large buffer per document)
+    private static final ThreadLocal<BufferedImage> regionBuffers = new ThreadLocal<>();
+
+    //downsampled tiles for the current level (weak keys: tiles that are no longer used drop out)
+    private Map<Tile, BufferedImage> previews = new WeakHashMap<>();
+    private int previewLevel = -1;
+
+    //tiles/workingTiles are row-major with (width + TILE_SIZE - 1) / TILE_SIZE columns; workingTiles may be null
+    public void paint(Graphics2D g, int x, int y, int width, int height, Tile[] tiles, BufferedImage[] workingTiles) {
+        int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+
+        //visible part of the grid
+        Rectangle area = new Rectangle(0, 0, width, height);
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            clip.translate(-x, -y);
+            area = area.intersection(clip);
+        }
+        if (area.isEmpty()) {
+            return;
+        }
+        int firstColumn = area.x / TILE_SIZE;
+        int lastColumn = (area.x + area.width - 1) / TILE_SIZE;
+        int firstRow = area.y / TILE_SIZE;
+        int lastRow = (area.y + area.height - 1) / TILE_SIZE;
+
+        AffineTransform transform = g.getTransform();
+        if (transform.getScaleX() == 1 && transform.getScaleY() == 1 && transform.getShearX() == 0 && transform.getShearY() == 0) {
+            //no zoom -- blit the tiles directly
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    g.drawImage(getTileImage(tiles, workingTiles, row * columns + column, 0),
+                            x + column * TILE_SIZE, y + row * TILE_SIZE, null);
+                }
+            }
+            return;
+        }
+
+        //zoomed -- compose the visible tiles and draw them once
+        int level = levelFor(Math.min(Math.abs(transform.getScaleX()), Math.abs(transform.getScaleY())));
+        if (level != previewLevel) {
+            previews = new WeakHashMap<>();
+            previewLevel = level;
+        }
+
+        int cellSize = TILE_SIZE >> level;
+        int bufferWidth = (lastColumn - firstColumn + 1) * cellSize;
+        int bufferHeight = (lastRow - firstRow + 1) * cellSize;
+        BufferedImage regionBuffer = regionBuffers.get();
+        if (regionBuffer == null || regionBuffer.getWidth() < bufferWidth || regionBuffer.getHeight() < bufferHeight
+                || (long) regionBuffer.getWidth() * regionBuffer.getHeight() > 4L * bufferWidth * bufferHeight) {
+            //grow to fit, or shrink when the visible area got much smaller (e.g. after a one-off large paint)
+            regionBuffer = new BufferedImage(bufferWidth, bufferHeight, BufferedImage.TYPE_INT_ARGB);
+            regionBuffers.set(regionBuffer);
+        }
+
+        Graphics2D bufferGraphics = regionBuffer.createGraphics();
+        bufferGraphics.setComposite(AlphaComposite.Src);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                bufferGraphics.drawImage(getTileImage(tiles, workingTiles, row * columns + column, level),
+                        (column - firstColumn) * cellSize, (row - firstRow) * cellSize, null);
+            }
+        }
+        bufferGraphics.dispose();
+
+        //only the part of the buffer that has canvas content
+        int left = firstColumn * TILE_SIZE;
+        int top = firstRow * TILE_SIZE;
+        int right = Math.min(width, (lastColumn + 1) * TILE_SIZE);
+        int bottom = Math.min(height, (lastRow + 1) * TILE_SIZE);
+        int sourceWidth = (right - left + (1 << level) - 1) >> level;
+        int sourceHeight = (bottom - top + (1 << level) - 1) >> level;
+        g.drawImage(regionBuffer, x + left, y + top, x + left + (sourceWidth << level), y + top + (sourceHeight << level),
+                0, 0, sourceWidth, sourceHeight, null);
+    }
+
+    //largest power of two downscale that is still at least as detailed as the screen
+    private static int levelFor(double scale) {
+        int level = 0;
+        while (level < MAX_LEVEL && scale * (2 << level) <= 1) {
+            level++;
+        }
+        return level;
+    }
+
+    private BufferedImage getTileImage(Tile[] tiles, BufferedImage[] workingTiles, int index, int level) {
+        BufferedImage working = workingTiles != null ? workingTiles[index] : null;
+        if (level == 0) {
+            return working != null ? working : tiles[index].getImage();
+        }
+        if (working != null) {
+            //being edited, changes every frame
+            int[] pixels = ((DataBufferInt) working.getRaster().getDataBuffer()).getData();
+            return downsample(pixels, working.getWidth(), working.getHeight(), level);
+        }
+
+        Tile tile = tiles[index];
+        BufferedImage preview = previews.get(tile);
+        if (preview == null) {
+            preview = downsample(tile.decode(), tile.getWidth(), tile.getHeight(), level);
+            previews.put(tile, preview);
+        }
+        return preview;
+    }
+
+    //box filter (average of each 2^level square, channels averaged independently)
+    private static BufferedImage downsample(int[] pixels, int width, int height, int level) {
+        int factor = 1 << level;
+        int previewWidth = (width + factor - 1) / factor;
+        int previewHeight = (height + factor - 1) / factor;
+        BufferedImage preview = new BufferedImage(previewWidth, previewHeight, BufferedImage.TYPE_INT_ARGB);
+        int[] out = ((DataBufferInt) preview.getRaster().getDataBuffer()).getData();
+
+        for (int py = 0; py < previewHeight; py++) {
+            for (int px = 0; px < previewWidth; px++) {
+                int a = 0, r = 0, g = 0, b = 0, count = 0;
+                int maxY = Math.min(height, (py + 1) * factor);
+                int maxX = Math.min(width, (px + 1) * factor);
+                for (int sy = py * factor; sy < maxY; sy++) {
+                    for (int sx = px * factor; sx < maxX; sx++) {
+                        int color = pixels[sy * width + sx];
+                        a += color >>> 24;
+                        r += (color >> 16) & 0xFF;
+                        g += (color >> 8) & 0xFF;
+                        b += color & 0xFF;
+                        count++;
+                    }
+                }
+                out[py * previewWidth + px] = (a / count) << 24 | (r / count) << 16 | (g / count) << 8 | (b / count);
+            }
+        }
+        return preview;
+    }
+}